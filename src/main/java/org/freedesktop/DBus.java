@@ -18,6 +18,7 @@ import java.lang.annotation.Target;
 import java.util.Map;
 import java.util.List;
 
+import org.freedesktop.dbus.DBusInline;
 import org.freedesktop.dbus.DBusInterface;
 import org.freedesktop.dbus.DBusSignal;
 import org.freedesktop.dbus.Position;
@@ -49,6 +50,7 @@ public interface DBus extends DBusInterface
     */
    public interface Peer extends DBusInterface
    {
+      @DBusInline
       public void Ping();
    }
    /**
@@ -87,6 +89,25 @@ public interface DBus extends DBusInterface
        * @return The properties mapped to their values.
        */
       public Map<String, Variant> GetAll (String interface_name);
+      /**
+       * Signal sent when the values of properties change.
+       */
+      public class PropertiesChanged extends DBusSignal
+      {
+         /** The interface the properties are associated with. */
+         public final String interface_name;
+         /** The properties which have changed, mapped to their new values. */
+         public final Map<String, Variant> changed_properties;
+         /** The properties which have changed, but whose new values were not sent. */
+         public final List<String> invalidated_properties;
+         public PropertiesChanged(String path, String interface_name, Map<String, Variant> changed_properties, List<String> invalidated_properties) throws DBusException
+         {
+            super(path, interface_name, changed_properties, invalidated_properties);
+            this.interface_name = interface_name;
+            this.changed_properties = changed_properties;
+            this.invalidated_properties = invalidated_properties;
+         }
+      }
    }
    /**
     * Messages generated locally in the application.
@@ -271,6 +292,17 @@ public interface DBus extends DBusInterface
             super(message);
          }
       }
+      /**
+       * Thrown if the requested name has no owner
+       */
+      @SuppressWarnings("serial")
+      public class NameHasNoOwner extends DBusExecutionException
+      {
+         public NameHasNoOwner(String message)
+         {
+            super(message);
+         }
+      }
       /**
        * Thrown if the match rule is invalid
        */
@@ -12,9 +12,8 @@ package org.freedesktop.dbus;
 
 import static org.freedesktop.dbus.Gettext._;
 
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.lang.reflect.Type;
+import java.lang.reflect.Proxy;
 
 import java.io.File;
 import java.io.IOException;
@@ -23,11 +22,18 @@ import java.text.MessageFormat;
 import java.text.ParseException;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.WeakHashMap;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.util.regex.Pattern;
 
@@ -45,37 +51,6 @@ import cx.ath.matthew.debug.Debug;
  */
 public abstract class AbstractConnection
 {
-   protected class FallbackContainer 
-   {
-      private Map<String[], ExportedObject> fallbacks = new HashMap<String[], ExportedObject>();
-      public synchronized void add(String path, ExportedObject eo)
-      {
-         if (Debug.debug) Debug.print(Debug.DEBUG, "Adding fallback on "+path+" of "+eo);
-         fallbacks.put(path.split("/"), eo);
-      }
-      public synchronized void remove(String path)
-      {
-         if (Debug.debug) Debug.print(Debug.DEBUG, "Removing fallback on "+path);
-         fallbacks.remove(path.split("/"));
-      }
-      public synchronized ExportedObject get(String path)
-      {
-         int best = 0;
-         int i = 0;
-         ExportedObject bestobject = null;
-         String[] pathel = path.split("/");
-         for (String[] fbpath: fallbacks.keySet()) {
-            if (Debug.debug) Debug.print(Debug.VERBOSE, "Trying fallback path "+Arrays.deepToString(fbpath)+" to match "+Arrays.deepToString(pathel));
-            for (i = 0; i < pathel.length && i < fbpath.length; i++)
-               if (!pathel[i].equals(fbpath[i])) break;
-            if (i > 0 && i == fbpath.length && i > best)
-               bestobject = fallbacks.get(fbpath);
-            if (Debug.debug) Debug.print(Debug.VERBOSE, "Matches "+i+" bestobject now "+bestobject);
-         }
-         if (Debug.debug) Debug.print(Debug.DEBUG, "Found fallback for "+path+" of "+bestobject);
-         return bestobject;
-      }
-   }
    protected class _thread extends Thread
    {
       public _thread()
@@ -86,7 +61,8 @@ public abstract class AbstractConnection
       {
          try {
             Message m = null;
-            while (_run) {
+            // stop if another thread has taken over reading while this one was blocked in a handler
+            while (_run && this == thread) {
                m = null;
 
                // read from the wire
@@ -139,7 +115,7 @@ public abstract class AbstractConnection
       {
          String intro = objectTree.Introspect(objectpath);
          if (null == intro) {
-            ExportedObject eo = fallbackcontainer.get(objectpath);
+            ExportedObject eo = objectTree.getFallback(objectpath);
             if (null != eo) intro = eo.introspectiondata;
          }
          if (null == intro) 
@@ -151,25 +127,99 @@ public abstract class AbstractConnection
    }
    protected class _workerthread extends Thread
    {
-      private boolean _run = true;
+      private volatile boolean _run = true;
       public void halt()
       {
          _run = false;
+         synchronized (runnables) {
+            runnables.notifyAll();
+         }
       }
       public void run()
       {
         while (_run) {
            Runnable r = null;
+           boolean idle = false;
+           boolean grow = false;
            synchronized (runnables) {
-              while (runnables.size() == 0 && _run) 
-                 try { runnables.wait(); } catch (InterruptedException Ie) {}
-              if (runnables.size() > 0)
-                 r = runnables.removeFirst();
+              long start = System.currentTimeMillis();
+              while (runnables.size() == 0 && _run && !idle) {
+                 idleworkers++;
+                 try { runnables.wait(idletimeout); } catch (InterruptedException Ie) {}
+                 idleworkers--;
+                 idle = System.currentTimeMillis() - start >= idletimeout;
+              }
+              if (runnables.size() > 0) {
+                 QueuedRunnable q = (QueuedRunnable) runnables.removeFirst();
+                 long wait = System.nanoTime() - q.queued;
+                 waittimes[waitindex++ % waittimes.length] = wait;
+                 if (waitindex == 2 * waittimes.length) waitindex = waittimes.length;
+                 grow = wait > growthreshold;
+                 r = q.r;
+              }
            }
-           if (null != r) r.run();
+           if (null != r) {
+              if (grow) growWorkers();
+              r.run();
+           } else if (idle && retireWorker(this)) 
+              return;
         }
       }
    }
+   /**
+    * Checks that handlers running inline do not block the connection thread.
+    * A handler still running after the inline time budget is moved to the
+    * worker threads, and a new connection thread carries on reading while
+    * the old one finishes the handler.
+    */
+   private class _inlinewatchdog extends Thread
+   {
+      public _inlinewatchdog()
+      {
+         setName("Inline Watchdog");
+         setDaemon(true);
+      }
+      public void run()
+      {
+         while (_run) {
+            try { 
+               Thread.sleep(Math.max(inlinebudget / 1000000, INLINE_CHECK_INTERVAL));
+            } catch (InterruptedException Ie) {}
+            long start = inlinestart.get();
+            if (0 == start || System.nanoTime() - start <= inlinebudget) continue;
+            Object key = inlinekey;
+            // these do not block, and another thread reading would change the order of signals
+            if (key instanceof _orderedhandler) continue;
+            // fails if the handler has returned in the meantime
+            if (!inlinestart.compareAndSet(start, 0)) continue;
+            if (Debug.debug) Debug.print(Debug.WARN, "Inline handler "+key+" is blocking the connection thread, moving it to worker threads");
+            if (null != key && !(key instanceof _orderedhandler)) demoted.put(key, Boolean.TRUE);
+            if (_run) {
+               _thread t = new _thread();
+               thread = t;
+               t.start();
+            }
+         }
+      }
+   }
+   /**
+    * Implemented by the library's own signal handlers which only hand
+    * signals on without blocking. They always run on the connection
+    * thread, so the signals are handed on in the order they arrive, and
+    * are never moved to the worker threads.
+    */
+   interface _orderedhandler {}
+   private static class QueuedRunnable implements Runnable
+   {
+      Runnable r;
+      long queued;
+      public QueuedRunnable(Runnable r)
+      {
+         this.r = r;
+         this.queued = System.nanoTime();
+      }
+      public void run() { r.run(); }
+   }
    private class _sender extends Thread
    {
       public _sender()
@@ -179,9 +229,12 @@ public abstract class AbstractConnection
       public void run()
       {
          Message m = null;
+         boolean more = false;
+         int unflushed = 0;
 
          if (Debug.debug) Debug.print(Debug.INFO, "Monitoring outbound queue");
-         // block on the outbound queue and send from it
+         // block on the outbound queue and send from it. Messages
+         // queued together are only flushed once the queue is empty.
          while (_run) {
             if (null != outgoing) synchronized (outgoing) {
                if (Debug.debug) Debug.print(Debug.VERBOSE, "Blocking");
@@ -190,10 +243,14 @@ public abstract class AbstractConnection
                if (Debug.debug) Debug.print(Debug.VERBOSE, "Notified");
                if (outgoing.size() > 0)
                   m = outgoing.remove();
+               more = outgoing.size() > 0;
                if (Debug.debug) Debug.print(Debug.DEBUG, "Got message: "+m);
             }
-            if (null != m) 
-               sendMessage(m);
+            if (null != m) {
+               boolean flush = !more || ++unflushed >= MAX_UNFLUSHED_MESSAGES;
+               sendMessage(m, flush);
+               if (flush) unflushed = 0;
+            }
             m = null;
          }
 
@@ -213,34 +270,121 @@ public abstract class AbstractConnection
          // close the underlying streams
       }
    }
+   /**
+    * A signal handler in the signal dispatch index, with the path and source it is restricted to.
+    */
+   private static class HandlerEntry
+   {
+      String object;
+      String source;
+      DBusSigHandler<? extends DBusSignal> handler;
+      boolean inline;
+      public HandlerEntry(SignalTuple key, DBusSigHandler<? extends DBusSignal> handler)
+      {
+         this.object = key.object;
+         this.source = key.source;
+         this.handler = handler;
+         this.inline = handler instanceof _orderedhandler || handler.getClass().isAnnotationPresent(DBusInline.class);
+      }
+      boolean matches(DBusSignal s)
+      {
+         return (null == object || object.equals(s.getPath()))
+            && (null == source || source.equals(s.getSource()));
+      }
+   }
+   /**
+    * Converts an incoming signal to its real type once, for all the handlers it is dispatched to.
+    */
+   private class _realsignal
+   {
+      private DBusSignal s;
+      private DBusSignal rs = null;
+      private boolean done = false;
+      public _realsignal(DBusSignal s)
+      {
+         this.s = s;
+      }
+      /** @return the converted signal, or null if it could not be converted */
+      public synchronized DBusSignal get()
+      {
+         if (done) return rs;
+         done = true;
+         if (!(s instanceof DBusSignal.internalsig || s.getClass().equals(DBusSignal.class)))
+            return rs = s;
+         try {
+            rs = s.createReal(AbstractConnection.this);
+         } catch (DBusException DBe) {
+            if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
+            try {
+               queueOutgoing(new Error(s, new DBusExecutionException("Error handling signal "+s.getInterface()+"."+s.getName()+": "+DBe.getMessage()))); 
+            } catch (DBusException DBe2) {}
+         }
+         return rs;
+      }
+   }
    /**
     * Timeout in us on checking the BUS for incoming messages and sending outgoing messages
     */
    protected static final int TIMEOUT = 100000;
    /** Initial size of the pending calls map */
    private static final int PENDING_MAP_INITIAL_SIZE = 10;
+   /** The most messages the sender writes before flushing them */
+   private static final int MAX_UNFLUSHED_MESSAGES = 64;
    static final String BUSNAME_REGEX = "^[-_a-zA-Z][-_a-zA-Z0-9]*(\\.[-_a-zA-Z][-_a-zA-Z0-9]*)*$";
    static final String CONNID_REGEX = "^:[0-9]*\\.[0-9]*$";
    static final String OBJECT_REGEX = "^/([-_a-zA-Z0-9]+(/[-_a-zA-Z0-9]+)*)?$";
    static final byte THREADCOUNT = 4;
+   static final int MAX_THREADCOUNT = 32;
+   /** Default time in us a method call or signal may wait for a worker before another is started */
+   static final long WORKER_GROW_THRESHOLD = 10000;
+   /** Default time in ms a worker may be idle before it is stopped */
+   static final long WORKER_IDLE_TIMEOUT = 60000;
+   /** Number of queue wait times kept for statistics */
+   static final int WAIT_SAMPLES = 1024;
+   /** Default time in us an inline handler may take before it is moved to the worker threads */
+   static final long INLINE_BUDGET = 1000;
+   /** Shortest time in ms between checks for inline handlers blocking the connection thread */
+   static final long INLINE_CHECK_INTERVAL = 10;
    static final int MAX_ARRAY_LENGTH = 67108864;
    static final int MAX_NAME_LENGTH = 255;
-   protected Map<String,ExportedObject> exportedObjects;
-   private ObjectTree objectTree;
+   /** Exported objects and fallbacks by path */
+   ObjectTree objectTree;
+   /** Handles the Peer and Introspectable interfaces on every path */
+   private ExportedObject globalhandler;
    private _globalhandler _globalhandlerreference;
    protected Map<DBusInterface,RemoteObject> importedObjects;
+   private ReplyCache replyCache;
+   IntrospectionCache introspectionCache;
+   /** Calls which identical calls may share, see DBusSingleFlight */
+   ConcurrentMap<Object, MethodCall> flights = new ConcurrentHashMap<Object, MethodCall>();
    protected Map<SignalTuple,Vector<DBusSigHandler<? extends DBusSignal>>> handledSignals;
+   /** Signal handlers by interface then member, rebuilt from handledSignals when it changes */
+   private Map<String,Map<String,HandlerEntry[]>> signalIndex;
    protected EfficientMap pendingCalls;
    protected Map<MethodCall, CallbackHandler<? extends Object>> pendingCallbacks;
    protected Map<MethodCall, DBusAsyncReply<? extends Object>> pendingCallbackReplys;
    protected LinkedList<Runnable> runnables;
    protected LinkedList<_workerthread> workers;
-   protected FallbackContainer fallbackcontainer;
+   private int minworkers = THREADCOUNT;
+   private int maxworkers = MAX_THREADCOUNT;
+   private long growthreshold = WORKER_GROW_THRESHOLD * 1000;
+   private long idletimeout = WORKER_IDLE_TIMEOUT;
+   private long lastgrow = 0;
+   private int idleworkers = 0;
+   private long[] waittimes = new long[WAIT_SAMPLES];
+   private int waitindex = 0;
    protected boolean _run;
    EfficientQueue outgoing;
    LinkedList<Error> pendingErrors;
-   private static final Map<Thread,DBusCallInfo> infomap = new HashMap<Thread,DBusCallInfo>();
-   protected _thread thread;
+   private long inlinebudget = INLINE_BUDGET * 1000;
+   /** Inline handlers which exceeded the time budget, kept until they are collected or removed */
+   private Map<Object,Boolean> demoted = Collections.synchronizedMap(new WeakHashMap<Object,Boolean>());
+   /** When the running inline handler started, or 0 */
+   private AtomicLong inlinestart = new AtomicLong();
+   private volatile Object inlinekey;
+   private _inlinewatchdog watchdog;
+   private static final ThreadLocal<DBusCallInfo> infomap = new ThreadLocal<DBusCallInfo>();
+   protected volatile _thread thread;
    protected _sender sender;
    protected Transport transport;
    protected String addr;
@@ -274,13 +418,13 @@ public abstract class AbstractConnection
 
    protected AbstractConnection(String address) throws DBusException
    {
-      exportedObjects = new HashMap<String,ExportedObject>();
       importedObjects = new HashMap<DBusInterface,RemoteObject>();
+      replyCache = new ReplyCache(this);
+      introspectionCache = new IntrospectionCache(this);
       _globalhandlerreference = new _globalhandler();
-      synchronized (exportedObjects) {
-         exportedObjects.put(null, new ExportedObject(_globalhandlerreference, weakreferences));
-      }
+      globalhandler = new ExportedObject(_globalhandlerreference, false);
       handledSignals = new HashMap<SignalTuple,Vector<DBusSigHandler<? extends DBusSignal>>>();
+      signalIndex = new ConcurrentHashMap<String,Map<String,HandlerEntry[]>>();
       pendingCalls = new EfficientMap(PENDING_MAP_INITIAL_SIZE);
       outgoing = new EfficientQueue(PENDING_MAP_INITIAL_SIZE);
       pendingCallbacks = new HashMap<MethodCall, CallbackHandler<? extends Object>>();
@@ -289,7 +433,6 @@ public abstract class AbstractConnection
       runnables = new LinkedList<Runnable>();
       workers = new LinkedList<_workerthread>();
       objectTree = new ObjectTree();
-      fallbackcontainer = new FallbackContainer();
       synchronized (workers) {
          for (int i = 0; i < THREADCOUNT; i++) {
             _workerthread t = new _workerthread();
@@ -312,45 +455,174 @@ public abstract class AbstractConnection
 
    /**
     * Change the number of worker threads to receive method calls and handle signals.
-    * Default is 4 threads
+    * This fixes the number of threads; use setWorkerThreads to let it vary with load.
     * @param newcount The new number of worker Threads to use.
     */
    public void changeThreadCount(byte newcount)
    {
+      setWorkerThreads(newcount, newcount);
+   }
+   /**
+    * Change the number of worker threads to receive method calls and handle signals.
+    * Threads are added when method calls or signals wait longer than the grow threshold for a worker,
+    * and stopped when they have been idle for the idle timeout.
+    * Default is between 4 and 32 threads.
+    * @param min The minimum number of worker Threads to use.
+    * @param max The maximum number of worker Threads to use.
+    */
+   public void setWorkerThreads(int min, int max)
+   {
+      if (min < 1 || max < min) throw new IllegalArgumentException(MessageFormat.format(_("Invalid worker thread limits: {0}, {1}"), new Object[] { min, max }));
       synchronized (workers) {
-         if (workers.size() > newcount) {
-            int n = workers.size() - newcount;
-            for (int i = 0; i < n; i++) {
-               _workerthread t = workers.removeFirst();
-               t.halt();
-            }
-         } else if (workers.size() < newcount) {
-            int n = newcount-workers.size();
-            for (int i = 0; i < n; i++) {
-               _workerthread t = new _workerthread();
-               t.start();
-               workers.add(t);
-            }
+         minworkers = min;
+         maxworkers = max;
+         while (workers.size() > max) 
+            workers.removeFirst().halt();
+         while (workers.size() < min) {
+            _workerthread t = new _workerthread();
+            t.start();
+            workers.add(t);
          }
       }
    }
-   private void addRunnable(Runnable r)
+   /**
+    * Change how long method calls and signals may wait for a worker thread before another is started.
+    * Default is 10000us.
+    * @param threshold The threshold in microseconds.
+    */
+   public void setWorkerGrowThreshold(long threshold)
+   {
+      this.growthreshold = threshold * 1000;
+   }
+   /**
+    * Change how long a worker thread may be idle before it is stopped, if there are more than the minimum.
+    * Default is 60000ms.
+    * @param timeout The timeout in milliseconds.
+    */
+   public void setWorkerIdleTimeout(long timeout)
+   {
+      this.idletimeout = timeout;
+   }
+   /**
+    * Returns the number of worker threads currently running.
+    */
+   public int getWorkerCount()
    {
+      synchronized (workers) {
+         return workers.size();
+      }
+   }
+   /**
+    * Returns the number of method calls and signals waiting for a worker thread.
+    */
+   public int getQueueDepth()
+   {
+      synchronized (runnables) {
+         return runnables.size();
+      }
+   }
+   /**
+    * Returns a percentile of the time recent method calls and signals waited for a worker thread.
+    * @param percentile The percentile, between 0 and 100.
+    * @return The wait time in microseconds.
+    */
+   public long getQueueWaitPercentile(double percentile)
+   {
+      long[] samples;
+      synchronized (runnables) {
+         samples = new long[Math.min(waitindex, waittimes.length)];
+         System.arraycopy(waittimes, 0, samples, 0, samples.length);
+      }
+      if (0 == samples.length) return 0;
+      Arrays.sort(samples);
+      int i = (int) Math.ceil(percentile / 100.0 * samples.length) - 1;
+      return samples[Math.max(0, Math.min(samples.length - 1, i))] / 1000;
+   }
+   private void growWorkers()
+   {
+      synchronized (workers) {
+         long now = System.nanoTime();
+         if (!_run || workers.size() >= maxworkers || now - lastgrow < growthreshold) return;
+         lastgrow = now;
+         if (Debug.debug) Debug.print(Debug.DEBUG, "Adding worker thread, now "+(workers.size()+1));
+         _workerthread t = new _workerthread();
+         t.start();
+         workers.add(t);
+      }
+   }
+   private boolean retireWorker(_workerthread t)
+   {
+      synchronized (workers) {
+         if (workers.size() <= minworkers || !workers.remove(t)) return false;
+         if (Debug.debug) Debug.print(Debug.DEBUG, "Stopping idle worker thread, now "+workers.size());
+         return true;
+      }
+   }
+   /**
+    * Change the time handlers marked with DBusInline may run for on the connection thread.
+    * Handlers which take longer than this are run on the worker threads from then on.
+    * A handler which is still running some time after its budget has run out is
+    * left to finish on its own while another thread carries on reading messages.
+    * Default is 1000us.
+    * @param budget The time budget in microseconds.
+    */
+   public void setInlineTimeBudget(long budget)
+   {
+      this.inlinebudget = budget * 1000;
+   }
+   void addRunnable(Runnable r)
+   {
+      boolean grow;
       synchronized(runnables) {
-         runnables.add(r);
-         runnables.notifyAll();
+         grow = 0 == idleworkers && runnables.size() > 0 
+            && System.nanoTime() - ((QueuedRunnable) runnables.getFirst()).queued > growthreshold;
+         runnables.add(new QueuedRunnable(r));
+         runnables.notify();
+      }
+      if (grow) growWorkers();
+   }
+   /**
+    * Runs r on this thread if inline is set, this is the connection thread and the
+    * handler identified by key has not previously exceeded the inline time budget,
+    * otherwise on a worker thread.
+    */
+   private void dispatch(Object key, boolean inline, Runnable r)
+   {
+      if (!inline || Thread.currentThread() != thread || demoted.containsKey(key)) {
+         addRunnable(r);
+         return;
+      }
+      if (null == watchdog) {
+         watchdog = new _inlinewatchdog();
+         watchdog.start();
+      }
+      long start = System.nanoTime();
+      inlinekey = key;
+      inlinestart.set(start);
+      boolean finished = false;
+      try {
+         r.run();
+      } catch (RuntimeException Re) {
+         // the next handler must still run
+         if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, Re);
+      } finally {
+         // fails if the watchdog has given reading to another thread
+         finished = inlinestart.compareAndSet(start, 0);
+      }
+      if (!finished) return;
+      inlinekey = null;
+      if (System.nanoTime() - start > inlinebudget && !(key instanceof _orderedhandler)) {
+         if (Debug.debug) Debug.print(Debug.INFO, "Inline handler "+key+" exceeded time budget, moving to worker threads");
+         demoted.put(key, Boolean.TRUE);
       }
    }
 
    String getExportedObject(DBusInterface i) throws DBusException
    {
-      synchronized (exportedObjects) {
-         for (String s: exportedObjects.keySet())
-            if (i.equals(exportedObjects.get(s).object.get()))
-               return s;
-      }
+      String s = objectTree.find(i);
+      if (null != s) return s;
 
-      String s = importedObjects.get(i).objectpath;
+      s = importedObjects.get(i).objectpath;
       if (null != s) return s;
 
       throw new DBusException("Not an object exported or imported by this connection"); 
@@ -364,11 +636,97 @@ public abstract class AbstractConnection
     */
    public static DBusCallInfo getCallInfo() 
    {
-      DBusCallInfo info;
-      synchronized (infomap) {
-         info = infomap.get(Thread.currentThread());
-      }
-      return info;
+      return infomap.get();
+   }
+   /**
+    * Sets the call information for the current thread.
+    * @return the previous call information, which should be restored afterwards.
+    */
+   static DBusCallInfo setCallInfo(DBusCallInfo info)
+   {
+      DBusCallInfo old = infomap.get();
+      if (null == info) infomap.remove();
+      else infomap.set(info);
+      return old;
+   }
+
+   /**
+    * Captures the information on the current method call so that it is available
+    * from getCallInfo when the Runnable is run on another thread.
+    * @param r The Runnable to wrap.
+    * @return a Runnable which runs r with the current call information, or r itself
+    * if we are not in a method call.
+    */
+   public static Runnable withCallInfo(final Runnable r)
+   {
+      final DBusCallInfo info = infomap.get();
+      if (null == info) return r;
+      return new Runnable() {
+         public void run()
+         {
+            DBusCallInfo old = setCallInfo(info);
+            try {
+               r.run();
+            } finally {
+               setCallInfo(old);
+            }
+         }
+      };
+   }
+   /**
+    * Captures the information on the current method call so that it is available
+    * from getCallInfo when the Callable is called on another thread.
+    * @param c The Callable to wrap.
+    * @return a Callable which calls c with the current call information, or c itself
+    * if we are not in a method call.
+    */
+   public static <V> Callable<V> withCallInfo(final Callable<V> c)
+   {
+      final DBusCallInfo info = infomap.get();
+      if (null == info) return c;
+      return new Callable<V>() {
+         public V call() throws Exception
+         {
+            DBusCallInfo old = setCallInfo(info);
+            try {
+               return c.call();
+            } finally {
+               setCallInfo(old);
+            }
+         }
+      };
+   }
+   /**
+    * Captures the information on the current method call so that it is available
+    * from getCallInfo when the callback is run.
+    * @param cb The callback to wrap.
+    * @return a CallbackHandler which runs cb with the current call information, or cb itself
+    * if we are not in a method call.
+    */
+   public static <A> CallbackHandler<A> withCallInfo(final CallbackHandler<A> cb)
+   {
+      final DBusCallInfo info = infomap.get();
+      if (null == info) return cb;
+      return new CallbackHandler<A>() {
+         public void handle(A r)
+         {
+            DBusCallInfo old = setCallInfo(info);
+            try {
+               cb.handle(r);
+            } finally {
+               setCallInfo(old);
+            }
+         }
+         public void handleError(DBusExecutionException e)
+         {
+            DBusCallInfo old = setCallInfo(info);
+            try {
+               cb.handleError(e);
+            } finally {
+               setCallInfo(old);
+            }
+         }
+      };
    }
 
    /**
@@ -397,13 +755,9 @@ public abstract class AbstractConnection
          throw new DBusException(_("Must Specify an Object Path"));
       if (!objectpath.matches(OBJECT_REGEX)||objectpath.length() > MAX_NAME_LENGTH) 
          throw new DBusException(_("Invalid object path: ")+objectpath);
-      synchronized (exportedObjects) {
-         if (null != exportedObjects.get(objectpath)) 
-            throw new DBusException(_("Object already exported"));
-         ExportedObject eo = new ExportedObject(object, weakreferences);
-         exportedObjects.put(objectpath, eo);
-         objectTree.add(objectpath, eo, eo.introspectiondata);
-      }
+      ExportedObject eo = new ExportedObject(object, weakreferences);
+      if (!objectTree.add(objectpath, eo, eo.introspectiondata))
+         throw new DBusException(_("Object already exported"));
    }
    /** 
     * Export an object as a fallback object.
@@ -420,8 +774,8 @@ public abstract class AbstractConnection
          throw new DBusException(_("Must Specify an Object Path"));
       if (!objectprefix.matches(OBJECT_REGEX)||objectprefix.length() > MAX_NAME_LENGTH) 
          throw new DBusException(_("Invalid object path: ")+objectprefix);
-         ExportedObject eo = new ExportedObject(object, weakreferences);
-         fallbackcontainer.add(objectprefix, eo);
+      ExportedObject eo = new ExportedObject(object, weakreferences);
+      objectTree.addFallback(objectprefix, eo);
    }
    /** 
     * Remove a fallback
@@ -429,7 +783,7 @@ public abstract class AbstractConnection
     */
    public void removeFallback(String objectprefix) 
    {
-      fallbackcontainer.remove(objectprefix);
+      objectTree.removeFallback(objectprefix);
    }   
    /** 
     * Stop Exporting an object 
@@ -437,10 +791,7 @@ public abstract class AbstractConnection
     */
    public void unExportObject(String objectpath) 
    {
-      synchronized (exportedObjects) {
-         exportedObjects.remove(objectpath);
-         objectTree.remove(objectpath);
-      }
+      objectTree.remove(objectpath);
    }
    /** 
        * Return a reference to a remote object. 
@@ -464,6 +815,88 @@ public abstract class AbstractConnection
    {
       queueOutgoing(signal);
    }
+   /**
+    * Returns the cache of replies to method calls on remote objects.
+    */
+   public ReplyCache getReplyCache()
+   {
+      return replyCache;
+   }
+   /**
+    * Create a batch of method calls which are sent together.
+    * @see DBusBatch
+    */
+   public DBusBatch batch()
+   {
+      return new DBusBatch(this);
+   }
+   /**
+    * Share calls to a remote object between all the callers which make the
+    * same call while it is waiting for its reply, as if all its methods
+    * were annotated with {@link DBusSingleFlight}.
+    * @param remote A remote object, from getRemoteObject or getPeerRemoteObject.
+    * @param enabled Whether to share calls.
+    * @throws DBusException If remote is not a remote object from this connection.
+    */
+   public void setSingleFlight(DBusInterface remote, boolean enabled) throws DBusException
+   {
+      RemoteObject ro = null == remote ? null : importedObjects.get(remote);
+      if (null == ro) throw new DBusException(_("Not an object exported or imported by this connection"));
+      ro.singleflight = enabled;
+   }
+   /**
+    * Get an object which calls the methods of a remote object without
+    * waiting for the replies. The calls return null, 0 or false; the handle
+    * to the reply is got by passing the return value to {@link DBusAsyncReply#of}:
+    * <pre>DBusAsyncReply&lt;String&gt; r = DBusAsyncReply.of(conn.async(remote).getName());</pre>
+    * The object is only created once for each remote object.
+    * @param remote A remote object, from getRemoteObject or getPeerRemoteObject.
+    * @return An object implementing the same interfaces as remote.
+    * @throws DBusException If remote is not a remote object from this connection.
+    */
+   @SuppressWarnings("unchecked")
+   public <I extends DBusInterface> I async(I remote) throws DBusException
+   {
+      RemoteObject ro = null == remote ? null : importedObjects.get(remote);
+      if (null == ro) throw new DBusException(_("Not an object exported or imported by this connection"));
+      DBusInterface async = ro.async;
+      if (null == async) {
+         async = (DBusInterface) Proxy.newProxyInstance(remote.getClass().getClassLoader(),
+               remote.getClass().getInterfaces(), new AsyncInvocationHandler(this, ro, null));
+         ro.async = async;
+      }
+      return (I) async;
+   }
+   /**
+    * Get an object which calls the methods of a remote object without
+    * waiting for the replies, which are passed to a callback instead.
+    * This handler will be called in a separate thread.
+    * @param remote A remote object, from getRemoteObject or getPeerRemoteObject.
+    * @param callback The callback handler for all the calls made on the returned object.
+    * @return An object implementing the same interfaces as remote.
+    * @throws DBusException If remote is not a remote object from this connection.
+    */
+   @SuppressWarnings("unchecked")
+   public <I extends DBusInterface> I async(I remote, CallbackHandler<? extends Object> callback) throws DBusException
+   {
+      RemoteObject ro = null == remote ? null : importedObjects.get(remote);
+      if (null == ro) throw new DBusException(_("Not an object exported or imported by this connection"));
+      return (I) Proxy.newProxyInstance(remote.getClass().getClassLoader(),
+            remote.getClass().getInterfaces(), new AsyncInvocationHandler(this, ro, callback));
+   }
+   /**
+    * Queue several messages to be sent together.
+    */
+   void queueOutgoing(Message[] ms)
+   {
+      synchronized (outgoing) {
+         if (null == outgoing) return;
+         for (Message m: ms)
+            outgoing.add(m);
+         if (Debug.debug) Debug.print(Debug.DEBUG, "Notifying outgoing thread of "+ms.length+" messages");
+         outgoing.notifyAll();
+      }
+   }
    void queueOutgoing(Message m)
    {
       synchronized (outgoing) {
@@ -538,10 +971,50 @@ public abstract class AbstractConnection
 
    protected abstract <T extends DBusSignal> void addSigHandler(DBusMatchRule rule, DBusSigHandler<T> handler) throws DBusException;
 
+   /** 
+    * Get a publisher for a signal.
+    * Subscribers to the publisher receive signals which match the specified type
+    * as they request them, rather than having them pushed as with a DBusSigHandler.
+    * @param type The signal to watch for. 
+    * @return A publisher for the signal. This should be closed when it is no longer needed.
+    * @throws DBusException If listening for the signal on the bus failed.
+    * @throws ClassCastException If type is not a sub-type of DBusSignal.
+    */
+   public <T extends DBusSignal> DBusSignalPublisher<T> getSignalPublisher(Class<T> type) throws DBusException
+   {
+      if (!DBusSignal.class.isAssignableFrom(type)) throw new ClassCastException(_("Not A DBus Signal")); 
+      return new DBusSignalPublisher<T>(this, new DBusMatchRule(type));
+   }
+   /** 
+    * Get a publisher for a signal.
+    * Subscribers to the publisher receive signals which match the specified type
+    * and object as they request them, rather than having them pushed as with a DBusSigHandler.
+    * @param type The signal to watch for. 
+    * @param object The object from which the signal will be emitted
+    * @return A publisher for the signal. This should be closed when it is no longer needed.
+    * @throws DBusException If listening for the signal on the bus failed.
+    * @throws ClassCastException If type is not a sub-type of DBusSignal.
+    */
+   public <T extends DBusSignal> DBusSignalPublisher<T> getSignalPublisher(Class<T> type, DBusInterface object) throws DBusException
+   {
+      if (!DBusSignal.class.isAssignableFrom(type)) throw new ClassCastException(_("Not A DBus Signal"));
+      String objectpath = importedObjects.get(object).objectpath;
+      if (!objectpath.matches(OBJECT_REGEX)||objectpath.length() > MAX_NAME_LENGTH)
+         throw new DBusException(_("Invalid object path: ")+objectpath);
+      return new DBusSignalPublisher<T>(this, new DBusMatchRule(type, null, objectpath));
+   }
+
    protected <T extends DBusSignal> void addSigHandlerWithoutMatch(Class<? extends DBusSignal> signal, DBusSigHandler<T> handler) throws DBusException
    {
       DBusMatchRule rule = new DBusMatchRule(signal);
-      SignalTuple key = new SignalTuple(rule.getInterface(), rule.getMember(), rule.getObject(), rule.getSource());
+      addHandledSignal(new SignalTuple(rule.getInterface(), rule.getMember(), rule.getObject(), rule.getSource()), handler);
+   }
+
+   /**
+    * Record a signal handler and add it to the signal dispatch index.
+    */
+   void addHandledSignal(SignalTuple key, DBusSigHandler<? extends DBusSignal> handler)
+   {
       synchronized (handledSignals) {
          Vector<DBusSigHandler<? extends DBusSignal>> v = handledSignals.get(key);
          if (null == v) {
@@ -550,8 +1023,55 @@ public abstract class AbstractConnection
             handledSignals.put(key, v);
          } else
             v.add(handler);
+         reindexSignal(key.type, key.name);
       }
    }
+   /**
+    * Remove a signal handler and remove it from the signal dispatch index.
+    * @return true if there are no handlers left for this key.
+    */
+   boolean removeHandledSignal(SignalTuple key, DBusSigHandler<? extends DBusSignal> handler)
+   {
+      synchronized (handledSignals) {
+         Vector<DBusSigHandler<? extends DBusSignal>> v = handledSignals.get(key);
+         if (null == v) return false;
+         v.remove(handler);
+         demoted.remove(handler);
+         boolean last = (0 == v.size());
+         if (last) handledSignals.remove(key);
+         reindexSignal(key.type, key.name);
+         return last;
+      }
+   }
+   /**
+    * Rebuild the dispatch index entry for one signal. Must hold the lock on handledSignals.
+    */
+   private void reindexSignal(String iface, String member)
+   {
+      Vector<HandlerEntry> entries = new Vector<HandlerEntry>();
+      // keep the order handlers were called in before: by no restriction, then path, source, both.
+      for (int pass = 0; pass < 4; pass++)
+         for (Map.Entry<SignalTuple,Vector<DBusSigHandler<? extends DBusSignal>>> e: handledSignals.entrySet()) {
+            SignalTuple key = e.getKey();
+            if ((null == iface ? null != key.type : !iface.equals(key.type))
+             || (null == member ? null != key.name : !member.equals(key.name))
+             || pass != (null == key.object ? 0 : 1) + (null == key.source ? 0 : 2))
+               continue;
+            for (DBusSigHandler<? extends DBusSignal> h: e.getValue())
+               entries.add(new HandlerEntry(key, h));
+         }
+      if (null == iface) iface = "";
+      if (null == member) member = "";
+      Map<String,HandlerEntry[]> members = signalIndex.get(iface);
+      if (null == members) {
+         members = new ConcurrentHashMap<String,HandlerEntry[]>();
+         signalIndex.put(iface, members);
+      }
+      if (0 == entries.size())
+         members.remove(member);
+      else
+         members.put(member, entries.toArray(new HandlerEntry[0]));
+   }
 
    /** 
     * Disconnect from the Bus.
@@ -632,17 +1152,10 @@ public abstract class AbstractConnection
    public <A> void callWithCallback(DBusInterface object, String m, CallbackHandler<A> callback, Object... parameters)
    {
       if (Debug.debug) Debug.print(Debug.VERBOSE, "callWithCallback("+object+","+m+", "+callback);
-      Class[] types = new Class[parameters.length];
-      for (int i = 0; i < parameters.length; i++) 
-         types[i] = parameters[i].getClass();
       RemoteObject ro = importedObjects.get(object);
 
       try {
-         Method me;
-         if (null == ro.iface)
-            me = object.getClass().getMethod(m, types);
-         else
-            me = ro.iface.getMethod(m, types);
+         Method me = CallDescriptor.findMethod(null == ro.iface ? object.getClass() : ro.iface, m, parameters);
          RemoteInvocationHandler.executeRemoteMethod(ro, me, this, RemoteInvocationHandler.CALL_TYPE_CALLBACK, callback, parameters);
       } catch (DBusExecutionException DBEe) {
          if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBEe);
@@ -663,17 +1176,10 @@ public abstract class AbstractConnection
    @SuppressWarnings("unchecked")
    public DBusAsyncReply callMethodAsync(DBusInterface object, String m, Object... parameters)
    {
-      Class<?>[] types = new Class[parameters.length];
-      for (int i = 0; i < parameters.length; i++) 
-         types[i] = parameters[i].getClass();
       RemoteObject ro = importedObjects.get(object);
 
       try {
-         Method me;
-         if (null == ro.iface)
-            me = object.getClass().getMethod(m, types);
-         else
-            me = ro.iface.getMethod(m, types);
+         Method me = CallDescriptor.findMethod(null == ro.iface ? object.getClass() : ro.iface, m, parameters);
          return (DBusAsyncReply) RemoteInvocationHandler.executeRemoteMethod(ro, me, this, RemoteInvocationHandler.CALL_TYPE_ASYNC, null, parameters);
       } catch (DBusExecutionException DBEe) {
          if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBEe);
@@ -695,16 +1201,8 @@ public abstract class AbstractConnection
       if (null == m.getInterface() ||
           m.getInterface().equals("org.freedesktop.DBus.Peer") ||
           m.getInterface().equals("org.freedesktop.DBus.Introspectable")) {
-         synchronized (exportedObjects) {
-            eo = exportedObjects.get(null);
-         }
-         if (null != eo && null == eo.object.get()) {
-            unExportObject(null);
-            eo = null;
-         }
-         if (null != eo) {
-            meth = eo.methods.get(new MethodTuple(m.getName(), m.getSig()));
-         }
+         eo = globalhandler;
+         meth = eo.methods.get(new MethodTuple(m.getName(), m.getSig()));
          if (null != meth)
             o = new _globalhandler(m.getPath());
          else
@@ -713,9 +1211,7 @@ public abstract class AbstractConnection
       if (null == o) {
          // now check for specific exported functions
 
-         synchronized (exportedObjects) {
-            eo = exportedObjects.get(m.getPath());
-         }
+         eo = objectTree.get(m.getPath());
          if (null != eo && null == eo.object.get()) {
             if (Debug.debug) Debug.print(Debug.INFO, "Unexporting "+m.getPath()+" implicitly");
             unExportObject(m.getPath());
@@ -723,7 +1219,7 @@ public abstract class AbstractConnection
          }
 
          if (null == eo) {
-            eo = fallbackcontainer.get(m.getPath());
+            eo = objectTree.getFallback(m.getPath());
          }
 
          if (null == eo) {
@@ -750,12 +1246,13 @@ public abstract class AbstractConnection
 
       // now execute it
       final Method me = meth;
+      final MethodCodec codec = MethodCodec.get(meth);
       final Object ob = o;
       final boolean noreply = (1 == (m.getFlags() & Message.Flags.NO_REPLY_EXPECTED));
       final DBusCallInfo info = new DBusCallInfo(m);
       final AbstractConnection conn = this;
       if (Debug.debug) Debug.print(Debug.VERBOSE, "Adding Runnable for method "+meth);
-      addRunnable(new Runnable() 
+      dispatch(meth, eo.inlinemethods.contains(meth), new Runnable() 
       { 
          private boolean run = false;
          public synchronized void run() 
@@ -764,9 +1261,8 @@ public abstract class AbstractConnection
             run = true;
             if (Debug.debug) Debug.print(Debug.DEBUG, "Running method "+me+" for remote call");
             try {
-               Type[] ts = me.getGenericParameterTypes();
-               m.setArgs(Marshalling.deSerializeParameters(m.getParameters(), ts, conn));
-               if (Debug.debug) Debug.print(Debug.VERBOSE, "Deserialised "+Arrays.deepToString(m.getParameters())+" to types "+Arrays.deepToString(ts));
+               m.setArgs(codec.deserialize(m, conn));
+               if (Debug.debug) Debug.print(Debug.VERBOSE, "Deserialised "+Arrays.deepToString(m.getParameters())+" to types "+Arrays.deepToString(me.getGenericParameterTypes()));
             } catch (Exception e) {
                if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
                try {
@@ -776,31 +1272,21 @@ public abstract class AbstractConnection
             }
 
             try { 
-               synchronized (infomap) {
-                  infomap.put(Thread.currentThread(), info);
-               }
                Object result;
+               DBusCallInfo old = setCallInfo(info);
                try {
                   if (Debug.debug) Debug.print(Debug.VERBOSE, "Invoking Method: "+me+" on "+ob+" with parameters "+Arrays.deepToString(m.getParameters()));
-                  result = me.invoke(ob, m.getParameters());
-               } catch (InvocationTargetException ITe) {
-                  if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, ITe.getCause());
-                  throw ITe.getCause();
-               }
-               synchronized (infomap) {
-                  infomap.remove(Thread.currentThread());
+                  result = codec.invoke(ob, m.getParameters());
+               } finally {
+                  setCallInfo(old);
                }
                if (!noreply) {
                   MethodReturn reply;
                   if (Void.TYPE.equals(me.getReturnType())) 
                      reply = new MethodReturn(m, null);
                   else {
-                     StringBuffer sb = new StringBuffer();
-                     for (String s: Marshalling.getDBusType(me.getGenericReturnType()))
-                        sb.append(s);
-                     Object[] nr = Marshalling.convertParameters(new Object[] { result }, new Type[] {me.getGenericReturnType()}, conn);
-                     
-                     reply = new MethodReturn(m, sb.toString(),nr);
+                     Object[] nr = codec.serializeReturn(result, conn);
+                     reply = new MethodReturn(m, codec.getReturnSignature(), nr);
                   }
                   conn.queueOutgoing(reply);
                }
@@ -818,45 +1304,31 @@ public abstract class AbstractConnection
          }
       });
    }
-   @SuppressWarnings({"unchecked","deprecation"})
+   @SuppressWarnings("unchecked")
    private void handleMessage(final DBusSignal s)
    {
       if (Debug.debug) Debug.print(Debug.DEBUG, "Handling incoming signal: "+s);
-      Vector<DBusSigHandler<? extends DBusSignal>> v = new Vector<DBusSigHandler<? extends DBusSignal>>();
-      synchronized(handledSignals) {
-         Vector<DBusSigHandler<? extends DBusSignal>> t;
-         t = handledSignals.get(new SignalTuple(s.getInterface(), s.getName(), null, null));
-         if (null != t) v.addAll(t);
-         t = handledSignals.get(new SignalTuple(s.getInterface(), s.getName(), s.getPath(), null));
-         if (null != t) v.addAll(t);
-         t = handledSignals.get(new SignalTuple(s.getInterface(), s.getName(), null, s.getSource()));
-         if (null != t) v.addAll(t);
-         t = handledSignals.get(new SignalTuple(s.getInterface(), s.getName(), s.getPath(), s.getSource()));
-         if (null != t) v.addAll(t);
-      }
-      if (0 == v.size()) return;
-      final AbstractConnection conn = this;
-      for (final DBusSigHandler<? extends DBusSignal> h: v) {
+      String iface = s.getInterface();
+      String member = s.getName();
+      Map<String,HandlerEntry[]> members = signalIndex.get(null == iface ? "" : iface);
+      if (null == members) return;
+      HandlerEntry[] entries = members.get(null == member ? "" : member);
+      if (null == entries) return;
+      _realsignal rs = null;
+      for (HandlerEntry e: entries) {
+         if (!e.matches(s)) continue;
+         if (null == rs) rs = new _realsignal(s);
+         final _realsignal frs = rs;
+         final DBusSigHandler<DBusSignal> h = (DBusSigHandler<DBusSignal>) e.handler;
          if (Debug.debug) Debug.print(Debug.VERBOSE, "Adding Runnable for signal "+s+" with handler "+h);
-         addRunnable(new Runnable() { 
+         dispatch(h, e.inline, new Runnable() { 
             private boolean run = false;
             public synchronized void run() 
             {
                if (run) return;
                run = true;
-               try {
-                  DBusSignal rs;
-                  if (s instanceof DBusSignal.internalsig || s.getClass().equals(DBusSignal.class))
-                     rs = s.createReal(conn);
-                  else
-                     rs = s;
-                  ((DBusSigHandler<DBusSignal>)h).handle(rs); 
-               } catch (DBusException DBe) {
-                  if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
-                  try {
-                     conn.queueOutgoing(new Error(s, new DBusExecutionException("Error handling signal "+s.getInterface()+"."+s.getName()+": "+DBe.getMessage()))); 
-                  } catch (DBusException DBe2) {}
-               }
+               DBusSignal real = frs.get();
+               if (null != real) h.handle(real); 
             }
          });
       }
@@ -891,16 +1363,12 @@ public abstract class AbstractConnection
                   run = true;
                   try {
                      if (Debug.debug) Debug.print(Debug.VERBOSE, "Running Error Callback for "+err);
-                     DBusCallInfo info = new DBusCallInfo(err);
-                     synchronized (infomap) {
-                        infomap.put(Thread.currentThread(), info);
+                     DBusCallInfo old = setCallInfo(new DBusCallInfo(err));
+                     try {
+                        fcbh.handleError(err.getException());
+                     } finally {
+                        setCallInfo(old);
                      }
-
-                     fcbh.handleError(err.getException());
-                     synchronized (infomap) {
-                        infomap.remove(Thread.currentThread());
-                     }
-
                   } catch (Exception e) {
                      if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
                   }
@@ -946,16 +1414,12 @@ public abstract class AbstractConnection
                   run = true;
                   try {
                      if (Debug.debug) Debug.print(Debug.VERBOSE, "Running Callback for "+mr);
-                     DBusCallInfo info = new DBusCallInfo(mr);
-                     synchronized (infomap) {
-                        infomap.put(Thread.currentThread(), info);
+                     DBusCallInfo old = setCallInfo(new DBusCallInfo(mr));
+                     try {
+                        fcbh.handle(RemoteInvocationHandler.convertRV(mr, fasr.getMethod(), fasr.getConnection()));
+                     } finally {
+                        setCallInfo(old);
                      }
-
-                     fcbh.handle(RemoteInvocationHandler.convertRV(mr.getSig(), mr.getParameters(), fasr.getMethod(), fasr.getConnection()));
-                     synchronized (infomap) {
-                        infomap.remove(Thread.currentThread());
-                     }
-
                   } catch (Exception e) {
                      if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
                   }
@@ -969,6 +1433,10 @@ public abstract class AbstractConnection
          } catch (DBusException DBe) {}
    }
    protected void sendMessage(Message m)
+   {
+      sendMessage(m, true);
+   }
+   private void sendMessage(Message m, boolean flush)
    {
       try {
 			if (!connected) throw new NotConnected(_("Disconnected"));
@@ -984,7 +1452,7 @@ public abstract class AbstractConnection
                }
          }
 
-         transport.mout.writeMessage(m);
+         transport.mout.writeMessage(m, flush);
          
       } catch (Exception e) {
          if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
@@ -1009,6 +1477,14 @@ public abstract class AbstractConnection
             } catch(DBusException IOe) {
                if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);            
             }
+         if (flush && connected && !(e instanceof IOException))
+            try {
+               // send anything written before this message
+               transport.mout.flush();
+            } catch (IOException IOe) {
+               if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, IOe);            
+               disconnect();
+            }
          if (e instanceof IOException) disconnect();
       }
    }
@@ -0,0 +1,53 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+
+/**
+ * Makes the calls on the objects from AbstractConnection.async without
+ * waiting for their replies. The handle for the reply of the last call on
+ * each thread is got with DBusAsyncReply.of, or the reply is given to a
+ * callback.
+ */
+class AsyncInvocationHandler implements InvocationHandler
+{
+   private AbstractConnection conn;
+   private RemoteObject remote;
+   private CallbackHandler<? extends Object> callback;
+   public AsyncInvocationHandler(AbstractConnection conn, RemoteObject remote, CallbackHandler<? extends Object> callback)
+   {
+      this.conn = conn;
+      this.remote = remote;
+      this.callback = callback;
+   }
+   public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+   {
+      CallDescriptor cd = CallDescriptor.get(method);
+      switch (cd.local) {
+         case CallDescriptor.IS_REMOTE:
+            return true;
+         case CallDescriptor.EQUALS:
+            return proxy == args[0];
+         case CallDescriptor.HASHCODE:
+            return System.identityHashCode(proxy);
+         case CallDescriptor.TOSTRING:
+            return "Async("+remote+")";
+      }
+      if (null == callback)
+         DBusAsyncReply.setLast((DBusAsyncReply<? extends Object>)
+               RemoteInvocationHandler.executeRemoteMethod(remote, cd, conn, RemoteInvocationHandler.CALL_TYPE_ASYNC, null, args));
+      else
+         RemoteInvocationHandler.executeRemoteMethod(remote, cd, conn, RemoteInvocationHandler.CALL_TYPE_CALLBACK, callback, args);
+      return cd.empty;
+   }
+}
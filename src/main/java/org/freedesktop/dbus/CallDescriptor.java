@@ -0,0 +1,171 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.freedesktop.DBus;
+
+import cx.ath.matthew.debug.Debug;
+
+/**
+ * Everything needed to call a method on a remote object which only
+ * depends on the Java method: the member name, the flags, how long
+ * replies are waited for and cached and the codec for its parameters and return value. The descriptors are created when
+ * a proxy is created, so calling a method through a proxy does not need
+ * any reflection.
+ */
+class CallDescriptor
+{
+   /** The method is called on the remote object. */
+   static final int REMOTE = 0;
+   /** DBusInterface.isRemote() */
+   static final int IS_REMOTE = 1;
+   /** Object.equals(Object) */
+   static final int EQUALS = 2;
+   /** Object.hashCode() */
+   static final int HASHCODE = 3;
+   /** Object.toString() */
+   static final int TOSTRING = 4;
+
+   private static final Map<Method, CallDescriptor> descriptors = new ConcurrentHashMap<Method, CallDescriptor>();
+   private static final Map<Class<? extends Object>, Map<String, Method[]>> byname = new ConcurrentHashMap<Class<? extends Object>, Map<String, Method[]>>();
+
+   /**
+    * Get the descriptor for a method.
+    */
+   static CallDescriptor get(Method m)
+   {
+      CallDescriptor cd = descriptors.get(m);
+      if (null == cd) {
+         cd = new CallDescriptor(m);
+         descriptors.put(m, cd);
+      }
+      return cd;
+   }
+   /**
+    * Find the method of a class which would be called with the given name and
+    * parameters. Methods with the same name and number of parameters are told
+    * apart by the classes of the parameters; primitive parameters match their
+    * wrappers and null matches any object.
+    * @throws NoSuchMethodException If there is no such method.
+    */
+   static Method findMethod(Class<? extends Object> c, String name, Object[] parameters) throws NoSuchMethodException
+   {
+      Map<String, Method[]> methods = byname.get(c);
+      if (null == methods) {
+         methods = new ConcurrentHashMap<String, Method[]>();
+         byname.put(c, methods);
+      }
+      Method[] candidates = methods.get(name);
+      if (null == candidates) {
+         List<Method> l = new ArrayList<Method>();
+         for (Method m: c.getMethods())
+            if (m.getName().equals(name)) l.add(m);
+         candidates = l.toArray(new Method[l.size()]);
+         methods.put(name, candidates);
+      }
+      Method found = null;
+      int matches = 0;
+      for (Method m: candidates)
+         if (m.getParameterTypes().length == parameters.length) {
+            found = m;
+            matches++;
+         }
+      if (1 == matches) return found;
+      if (0 < matches)
+         for (Method m: candidates) {
+            Class<?>[] types = m.getParameterTypes();
+            if (types.length != parameters.length) continue;
+            boolean ok = true;
+            for (int i = 0; ok && i < types.length; i++)
+               ok = null == parameters[i] ? !types[i].isPrimitive() : wrap(types[i]).isInstance(parameters[i]);
+            if (ok) return m;
+         }
+      throw new NoSuchMethodException(c.getName()+"."+name);
+   }
+   private static Class<?> wrap(Class<?> c)
+   {
+      if (!c.isPrimitive()) return c;
+      if (Boolean.TYPE.equals(c)) return Boolean.class;
+      if (Character.TYPE.equals(c)) return Character.class;
+      if (Byte.TYPE.equals(c)) return Byte.class;
+      if (Short.TYPE.equals(c)) return Short.class;
+      if (Integer.TYPE.equals(c)) return Integer.class;
+      if (Long.TYPE.equals(c)) return Long.class;
+      if (Float.TYPE.equals(c)) return Float.class;
+      if (Double.TYPE.equals(c)) return Double.class;
+      return Void.class;
+   }
+   /**
+    * Create the descriptors for all the methods of an interface.
+    */
+   static void prepare(Class<? extends Object> iface)
+   {
+      if (Debug.debug) Debug.print(Debug.VERBOSE, "Creating call descriptors for "+iface);
+      for (Method m: iface.getMethods())
+         get(m);
+   }
+
+   final Method method;
+   final MethodCodec codec;
+   final String name;
+   final boolean noreply;
+   final byte flags;
+   final int local;
+   /** How long to cache replies for, from the DBusCached annotation */
+   final long cachettl;
+   /** Whether identical calls share one call on the wire, from the DBusSingleFlight annotation */
+   final boolean singleflight;
+   /** How long to wait for replies, from the DBusTimeout annotation, or 0 for the default */
+   final long timeout;
+   /** Returned for calls which are not made straight away: null, 0 or false */
+   final Object empty;
+
+   private CallDescriptor(Method m)
+   {
+      method = m;
+      if (m.isAnnotationPresent(DBusMemberName.class))
+         name = m.getAnnotation(DBusMemberName.class).value();
+      else
+         name = m.getName();
+      noreply = m.isAnnotationPresent(DBus.Method.NoReply.class);
+      flags = noreply ? Message.Flags.NO_REPLY_EXPECTED : 0;
+      cachettl = m.isAnnotationPresent(DBusCached.class) ? m.getAnnotation(DBusCached.class).value() : 0;
+      timeout = m.isAnnotationPresent(DBusTimeout.class) ? m.getAnnotation(DBusTimeout.class).value() : 0;
+      singleflight = m.isAnnotationPresent(DBusSingleFlight.class);
+      Class<? extends Object> c = m.getDeclaringClass();
+      if (Object.class.equals(c)) {
+         if ("equals".equals(m.getName())) local = EQUALS;
+         else if ("hashCode".equals(m.getName())) local = HASHCODE;
+         else if ("toString".equals(m.getName())) local = TOSTRING;
+         else local = REMOTE;
+      } else if (DBusInterface.class.equals(c) && "isRemote".equals(m.getName()))
+         local = IS_REMOTE;
+      else
+         local = REMOTE;
+      codec = REMOTE == local ? MethodCodec.get(m) : null;
+      Class<? extends Object> rt = m.getReturnType();
+      if (!rt.isPrimitive() || Void.TYPE.equals(rt)) empty = null;
+      else if (Boolean.TYPE.equals(rt)) empty = false;
+      else if (Character.TYPE.equals(rt)) empty = (char) 0;
+      else if (Byte.TYPE.equals(rt)) empty = (byte) 0;
+      else if (Short.TYPE.equals(rt)) empty = (short) 0;
+      else if (Integer.TYPE.equals(rt)) empty = 0;
+      else if (Long.TYPE.equals(rt)) empty = 0L;
+      else if (Float.TYPE.equals(rt)) empty = 0F;
+      else empty = 0D;
+   }
+}
@@ -11,10 +11,7 @@
 package org.freedesktop.dbus;
 
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 import java.lang.reflect.Field;
-import java.lang.reflect.Type;
 
 /**
  * This class is the super class of both Structs and Tuples 
@@ -22,36 +19,19 @@ import java.lang.reflect.Type;
  */
 abstract class Container
 {
-   private static Map<Type,Type[]> typecache = new HashMap<Type,Type[]>();
-   static void putTypeCache(Type k, Type[] v)
-   {
-      typecache.put(k, v);
-   }
-   static Type[] getTypeCache(Type k)
-   {
-      return typecache.get(k);
-   }
    private Object[] parameters = null;
    public Container() {}
    private void setup()
    {
-      Field[] fs = getClass().getDeclaredFields();
+      Field[] fs = TypeRegistry.getContainerFields(getClass());
       Object[] args = new Object[fs.length];
-
-      int diff = 0;
-      for (Field f : fs) {
-         Position p = f.getAnnotation(Position.class);
-         if (null == p) {
-            diff++;
-            continue;
-         }
+      for (int i = 0; i < fs.length; i++) {
+         if (null == fs[i]) continue;
          try {
-            args[p.value()] = f.get(this);
+            args[i] = fs[i].get(this);
          } catch (IllegalAccessException IAe) {}
       }
-         
-      this.parameters = new Object[args.length - diff];
-      System.arraycopy(args, 0, parameters, 0, parameters.length);
+      this.parameters = args;
    }
    /**
     * Returns the struct contents in order.
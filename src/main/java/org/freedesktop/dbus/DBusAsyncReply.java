@@ -41,6 +41,33 @@ public class DBusAsyncReply<ReturnType>
          if (!i.next().hasReply()) i.remove();
       return c;
    }
+   private static final ThreadLocal<DBusAsyncReply<? extends Object>> last = new ThreadLocal<DBusAsyncReply<? extends Object>>();
+   static void setLast(DBusAsyncReply<? extends Object> reply)
+   {
+      last.set(reply);
+   }
+   /** Forget the last call, as another is being made. */
+   static void clearLast()
+   {
+      last.remove();
+   }
+   /**
+    * Get the handle to the call which was just made on an object from
+    * {@link AbstractConnection#async}, with the type of its return value:
+    * <pre>DBusAsyncReply&lt;String&gt; r = DBusAsyncReply.of(conn.async(remote).getName());</pre>
+    * @param value The value returned by the call. It is only used for its type.
+    * @return The handle to the last call made from this thread.
+    * @throws DBusExecutionException If the last call made from this thread on a
+    * remote object was not an asynchronous one, or its handle has already been got.
+    */
+   @SuppressWarnings("unchecked")
+   public static <ReturnType> DBusAsyncReply<ReturnType> of(ReturnType value)
+   {
+      DBusAsyncReply<? extends Object> reply = last.get();
+      if (null == reply) throw new DBusExecutionException(_("No asynchronous call has been made"));
+      last.remove();
+      return (DBusAsyncReply<ReturnType>) reply;
+   }
 
    private ReturnType rval = null;
    private DBusExecutionException error = null;
@@ -62,7 +89,7 @@ public class DBusAsyncReply<ReturnType>
             error = ((Error) m).getException();
          else if (m instanceof MethodReturn) {
             try {
-               rval = (ReturnType) RemoteInvocationHandler.convertRV(m.getSig(), m.getParameters(), me, conn);
+               rval = (ReturnType) RemoteInvocationHandler.convertRV(m, me, conn);
             } catch (DBusExecutionException DBEe) {
                error = DBEe;
             } catch (DBusException DBe) {
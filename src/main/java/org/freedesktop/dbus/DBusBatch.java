@@ -0,0 +1,150 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import static org.freedesktop.dbus.Gettext._;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.freedesktop.DBus;
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.DBusExecutionException;
+import org.freedesktop.dbus.exceptions.NotConnected;
+
+import cx.ath.matthew.debug.Debug;
+
+/**
+ * Collects method calls on remote objects and sends them all at once,
+ * so that many calls only take about as long as one round trip.
+ * <p>
+ * Calls are recorded on the objects returned by {@link #wrap}, which
+ * implement the same interface as the remote object they wrap. The
+ * recorded calls return null, 0 or false. Once all the calls have been
+ * recorded, {@link #execute} sends them and waits for all the replies.
+ * </p>
+ * Batches are created with {@link AbstractConnection#batch()}.
+ * A batch should only be used by one thread.
+ */
+public class DBusBatch
+{
+   private class _recorder implements InvocationHandler
+   {
+      private RemoteObject remote;
+      public _recorder(RemoteObject remote)
+      {
+         this.remote = remote;
+      }
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+      {
+         CallDescriptor cd = CallDescriptor.get(method);
+         switch (cd.local) {
+            case CallDescriptor.IS_REMOTE:
+               return true;
+            case CallDescriptor.EQUALS:
+               return proxy == args[0];
+            case CallDescriptor.HASHCODE:
+               return System.identityHashCode(proxy);
+            case CallDescriptor.TOSTRING:
+               return "Batch("+remote+")";
+         }
+         calls.add(RemoteInvocationHandler.createCall(remote, cd, conn, RemoteInvocationHandler.CALL_TYPE_SYNC, args));
+         descriptors.add(cd);
+         return cd.empty;
+      }
+   }
+
+   private AbstractConnection conn;
+   private List<MethodCall> calls = new ArrayList<MethodCall>();
+   private List<CallDescriptor> descriptors = new ArrayList<CallDescriptor>();
+   DBusBatch(AbstractConnection conn)
+   {
+      this.conn = conn;
+   }
+   /**
+    * Get an object which records calls to a remote object in this batch.
+    * @param remote A remote object, from getRemoteObject or getPeerRemoteObject.
+    * @return An object implementing the same interfaces as remote.
+    * @throws DBusException If remote is not a remote object from this connection.
+    */
+   @SuppressWarnings("unchecked")
+   public <I extends DBusInterface> I wrap(I remote) throws DBusException
+   {
+      RemoteObject ro = null == remote ? null : conn.importedObjects.get(remote);
+      if (null == ro) throw new DBusException(_("Not an object exported or imported by this connection"));
+      return (I) Proxy.newProxyInstance(remote.getClass().getClassLoader(),
+            remote.getClass().getInterfaces(), new _recorder(ro));
+   }
+   /**
+    * The number of calls waiting to be executed.
+    */
+   public int size()
+   {
+      return calls.size();
+   }
+   /**
+    * Send all the recorded calls and wait for their replies.
+    * The batch is empty afterwards and can be used again.
+    * @param timeout The longest time to wait for all the replies together, in milliseconds.
+    * @return The results of the calls in the order they were made. The result of a call which
+    *         failed or timed out is the DBusExecutionException it would have thrown.
+    * @throws DBusExecutionException If called from a signal handler.
+    */
+   public List<Object> execute(long timeout)
+   {
+      MethodCall[] cs = calls.toArray(new MethodCall[calls.size()]);
+      CallDescriptor[] cds = descriptors.toArray(new CallDescriptor[descriptors.size()]);
+      calls.clear();
+      descriptors.clear();
+      List<Object> results = new ArrayList<Object>(cs.length);
+      if (0 == cs.length) return results;
+      if (Thread.currentThread() == conn.thread)
+         throw new DBusExecutionException(_("Cannot make synchronous calls from an inline handler"));
+      if (null == conn.outgoing) throw new NotConnected(_("Not Connected"));
+
+      if (Debug.debug) Debug.print(Debug.DEBUG, "Executing batch of "+cs.length+" calls");
+      long deadline = System.currentTimeMillis() + timeout;
+      conn.queueOutgoing(cs);
+      for (int i = 0; i < cs.length; i++) {
+         if (cds[i].noreply) {
+            results.add(null);
+            continue;
+         }
+         try {
+            long left = deadline - System.currentTimeMillis();
+            Message reply = left > 0 ? cs[i].getReply(left) : (cs[i].hasReply() ? cs[i].getReply() : null);
+            if (null == reply) throw new DBus.Error.NoReply(_("No reply within specified time"));
+            if (reply instanceof Error)
+               ((Error) reply).throwException();
+            results.add(RemoteInvocationHandler.convertRV(reply, cds[i].method, conn));
+         } catch (DBusExecutionException DBEe) {
+            if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBEe);
+            results.add(DBEe);
+         } catch (DBusException DBe) {
+            if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
+            results.add(new DBusExecutionException(DBe.getMessage()));
+         }
+      }
+      return results;
+   }
+   /**
+    * Send all the recorded calls and wait for their replies,
+    * using the default method call timeout.
+    * @see #execute(long)
+    */
+   public List<Object> execute()
+   {
+      return execute(MethodCall.getDefaultTimeout());
+   }
+}
@@ -60,7 +60,7 @@ public class DBusConnection extends AbstractConnection
 		{
 			addresses = new TreeSet<String>();
 			try { 
-				addSigHandler(new DBusMatchRule(DBus.NameOwnerChanged.class, null, null), this);
+				nameOwners.addHandler(this);
 			} catch (DBusException DBe) {
 				if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
 			}
@@ -199,6 +199,7 @@ public class DBusConnection extends AbstractConnection
    private int _refcount = 0;
    private Object _reflock = new Object();
    private DBus _dbus;
+   private NameOwnerRegistry nameOwners;
 
    /**
     * Connect to the BUS. If a connection already exists to the specified Bus, a reference to it is returned.
@@ -318,6 +319,7 @@ public class DBusConnection extends AbstractConnection
 
       // register ourselves
       _dbus = getRemoteObject("org.freedesktop.DBus", "/org/freedesktop/DBus", DBus.class);
+      nameOwners = new NameOwnerRegistry(this, _dbus);
       try {
          busnames.add(_dbus.Hello());
       } catch (DBusExecutionException DBEe) {
@@ -329,44 +331,12 @@ public class DBusConnection extends AbstractConnection
    @SuppressWarnings("unchecked")
    DBusInterface dynamicProxy(String source, String path) throws DBusException
    {
-		if (Debug.debug) Debug.print(Debug.INFO, "Introspecting "+path+" on "+source+" for dynamic proxy creation");
       try {
-         DBus.Introspectable intro = getRemoteObject(source, path, DBus.Introspectable.class);
-         String data = intro.Introspect();
-			if (Debug.debug) Debug.print(Debug.VERBOSE, "Got introspection data: "+data);
-         String[] tags = data.split("[<>]");
-         Vector<String> ifaces = new Vector<String>();
-         for (String tag: tags) {
-            if (tag.startsWith("interface")) {
-               ifaces.add(tag.replaceAll("^interface *name *= *['\"]([^'\"]*)['\"].*$", "$1"));
-            }
-         }
-         Vector<Class<? extends Object>> ifcs = new Vector<Class<? extends Object>>();
-         for(String iface: ifaces) {
-				if (Debug.debug) Debug.print(Debug.DEBUG, "Trying interface "+iface);
-            int j = 0;
-            while (j >= 0) {
-               try {
-                  Class ifclass = Class.forName(iface);
-                  if (!ifcs.contains(ifclass))
-                     ifcs.add(ifclass);
-                  break;
-               } catch (Exception e) {}
-               j = iface.lastIndexOf(".");
-               char[] cs = iface.toCharArray();
-               if (j >= 0) {
-                  cs[j] = '$';
-                  iface = String.valueOf(cs);
-               }
-            }
-         }
-
-         if (ifcs.size() == 0) throw new DBusException(_("Could not find an interface to cast to"));
-
+         Class<?>[] ifcs = introspectionCache.getInterfaces(source, path);
          RemoteObject ro = new RemoteObject(source, path, null, false);
          DBusInterface newi = (DBusInterface) 
-            Proxy.newProxyInstance(ifcs.get(0).getClassLoader(), 
-                                   ifcs.toArray(new Class[0]), 
+            Proxy.newProxyInstance(ifcs[0].getClassLoader(), 
+                                   ifcs, 
                                    new RemoteInvocationHandler(this, ro));
          importedObjects.put(newi, ro);
          return newi;
@@ -378,10 +348,7 @@ public class DBusConnection extends AbstractConnection
    
    DBusInterface getExportedObject(String source, String path) throws DBusException
    {
-      ExportedObject o = null;
-      synchronized (exportedObjects) {
-         o = exportedObjects.get(path);
-      }
+      ExportedObject o = objectTree.get(path);
       if (null != o && null == o.object.get()) {
          unExportObject(path);
          o = null;
@@ -451,6 +418,23 @@ public class DBusConnection extends AbstractConnection
    {
       return busnames.get(0);
    }
+   /**
+    * Returns the registry which tracks the owners of bus names for this connection.
+    */
+   public NameOwnerRegistry getNameOwnerRegistry()
+   {
+      return nameOwners;
+   }
+   /**
+    * Returns the unique name of the owner of a bus name, tracked by the
+    * name owner registry so that it does not usually need a round trip.
+    * @throws DBusException If the owners of names cannot be tracked.
+    * @throws DBus.Error.NameHasNoOwner If the name has no owner.
+    */
+   public String getNameOwner(String busname) throws DBusException
+   {
+      return nameOwners.getNameOwner(busname);
+   }
    /**
     * Returns all the names owned by this connection.
     */
@@ -492,7 +476,7 @@ public class DBusConnection extends AbstractConnection
             || busname.length() > MAX_NAME_LENGTH) 
          throw new DBusException(_("Invalid bus name: ")+busname);
       
-      String unique = _dbus.GetNameOwner(busname);
+      String unique = nameOwners.getNameOwner(busname);
 
       return dynamicProxy(unique, objectpath);
    }
@@ -558,7 +542,7 @@ public class DBusConnection extends AbstractConnection
             || busname.length() > MAX_NAME_LENGTH) 
          throw new DBusException(_("Invalid bus name: ")+busname);
       
-      String unique = _dbus.GetNameOwner(busname);
+      String unique = nameOwners.getNameOwner(busname);
 
       return getRemoteObject(unique, objectpath, type, autostart);
    }
@@ -620,8 +604,10 @@ public class DBusConnection extends AbstractConnection
          throw new DBusException(_("DBusInterfaces cannot be declared outside a package"));
       
       RemoteObject ro = new RemoteObject(busname, objectpath, type, autostart);
-      I i =  (I) Proxy.newProxyInstance(type.getClassLoader(), 
-            new Class[] { type }, new RemoteInvocationHandler(this, ro));
+      I i = RemoteStub.create(type, this, ro);
+      if (null == i)
+         i = (I) Proxy.newProxyInstance(type.getClassLoader(), 
+               new Class[] { type }, new RemoteInvocationHandler(this, ro));
       importedObjects.put(i, ro);
       return i;
    }
@@ -665,22 +651,15 @@ public class DBusConnection extends AbstractConnection
    {
       
       SignalTuple key = new SignalTuple(rule.getInterface(), rule.getMember(), rule.getObject(), rule.getSource());
-      synchronized (handledSignals) {
-         Vector<DBusSigHandler<? extends DBusSignal>> v = handledSignals.get(key);
-         if (null != v) {
-            v.remove(handler);
-            if (0 == v.size()) {
-               handledSignals.remove(key);
-               try {
-                  _dbus.RemoveMatch(rule.toString());
-               } catch (NotConnected NC) {
-                  if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, NC);
-               } catch (DBusExecutionException DBEe) {
-                  if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBEe);
-						throw new DBusException(DBEe.getMessage());
-               }
-            }
-         } 
+      if (removeHandledSignal(key, handler)) {
+         try {
+            _dbus.RemoveMatch(rule.toString());
+         } catch (NotConnected NC) {
+            if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, NC);
+         } catch (DBusExecutionException DBEe) {
+            if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBEe);
+            throw new DBusException(DBEe.getMessage());
+         }
       }
    }
    /** 
@@ -732,15 +711,7 @@ public class DBusConnection extends AbstractConnection
          throw new DBusException(DBEe.getMessage());
       }
       SignalTuple key = new SignalTuple(rule.getInterface(), rule.getMember(), rule.getObject(), rule.getSource());
-      synchronized (handledSignals) {
-         Vector<DBusSigHandler<? extends DBusSignal>> v = handledSignals.get(key);
-         if (null == v) {
-            v = new Vector<DBusSigHandler<? extends DBusSignal>>();
-            v.add(handler);
-            handledSignals.put(key, v);
-         } else
-            v.add(handler);
-      }
+      addHandledSignal(key, handler);
    }
    /** 
     * Disconnect from the Bus.
@@ -0,0 +1,34 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Run exported methods or signal handlers directly on the thread reading
+ * from the connection, rather than handing them to a worker thread.
+ * <p>
+ * This may be put on an exported interface, on a method of one, or on a 
+ * class implementing DBusSigHandler. It is only suitable for handlers which 
+ * return very quickly, as no other messages are read while they run. Inline
+ * handlers MUST NOT block, and MUST NOT make synchronous method calls on the
+ * same connection. Any handler which takes longer than the connection's
+ * inline time budget is moved back to the worker threads for subsequent
+ * messages. If one is still running some time after its budget has run out,
+ * another thread is started to carry on reading from the connection.
+ * </p>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE,ElementType.METHOD})
+public @interface DBusInline {}
@@ -12,6 +12,7 @@ package org.freedesktop.dbus;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -20,11 +21,34 @@ import java.util.Vector;
 
 class DBusMap<K, V> implements Map<K, V>
 {
+   /** Maps larger than this get a hash index on the first lookup. */
+   static final int INDEX_THRESHOLD = 16;
    Object[][] entries;
+   private volatile Map<Object, Integer> index = null;
    public DBusMap(Object[][] entries)
    {
       this.entries=entries;
    }
+   /* the position of a key in entries, or -1 */
+   private int find(Object key)
+   {
+      if (entries.length > INDEX_THRESHOLD) {
+         Map<Object, Integer> idx = index;
+         if (null == idx) {
+            idx = new HashMap<Object, Integer>(entries.length * 4 / 3 + 1);
+            for (int i = 0; i < entries.length; i++)
+               if (!idx.containsKey(entries[i][0]))
+                  idx.put(entries[i][0], i);
+            index = idx;
+         }
+         Integer i = idx.get(key);
+         return null == i ? -1 : i;
+      }
+      for (int i = 0; i < entries.length; i++)
+         if (key == entries[i][0] || (key != null && key.equals(entries[i][0])))
+            return i;
+      return -1;
+   }
    class Entry implements Map.Entry<K,V>, Comparable<Entry>
    {
       private int entry;
@@ -68,10 +92,7 @@ class DBusMap<K, V> implements Map<K, V>
    }
    public boolean containsKey(Object key)
    {
-      for (int i = 0; i < entries.length; i++)
-         if (key == entries[i][0] || (key != null && key.equals(entries[i][0])))
-            return true;
-      return false;
+      return -1 != find(key);
    }
    public boolean containsValue(Object value)
    {
@@ -90,10 +111,8 @@ class DBusMap<K, V> implements Map<K, V>
    @SuppressWarnings("unchecked")
    public V get(Object key)
    {
-      for (int i = 0; i < entries.length; i++)
-         if (key == entries[i][0] || (key != null && key.equals(entries[i][0])))
-            return (V) entries[i][1];
-      return null;
+      int i = find(key);
+      return -1 == i ? null : (V) entries[i][1];
    }
    public boolean isEmpty() 
    { 
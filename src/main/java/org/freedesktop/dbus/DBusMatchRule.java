@@ -15,7 +15,6 @@ import static org.freedesktop.dbus.Gettext._;
 import org.freedesktop.dbus.exceptions.DBusException;
 import org.freedesktop.dbus.exceptions.DBusExecutionException;
 
-import java.util.HashMap;
 
 public class DBusMatchRule
 {
@@ -25,12 +24,6 @@ public class DBusMatchRule
    private String member;
    private String object;
    private String source;
-	private static HashMap<String, Class<? extends DBusSignal>> signalTypeMap = 
-					new HashMap<String, Class<? extends DBusSignal>>();
-	static Class<? extends DBusSignal> getCachedSignalType(String type)
-	{
-		return signalTypeMap.get(type);
-	}
    public DBusMatchRule(String type, String iface, String member)
    {
       this.type = type;
@@ -98,7 +91,7 @@ public class DBusMatchRule
             member = c.getAnnotation(DBusMemberName.class).value();
          else
             member = c.getSimpleName();
-			signalTypeMap.put(iface+'$'+member, (Class<? extends DBusSignal>) c);
+			TypeRegistry.putSignalClass(iface+'$'+member, (Class<? extends DBusSignal>) c);
          type = "signal";
       }
       else if (Error.class.isAssignableFrom(c)) {
@@ -13,12 +13,8 @@ package org.freedesktop.dbus;
 import static org.freedesktop.dbus.Gettext._;
 
 import java.lang.reflect.Constructor;
-import java.lang.reflect.GenericDeclaration;
 import java.lang.reflect.Type;
-import java.lang.reflect.TypeVariable;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Vector;
 
 import org.freedesktop.dbus.exceptions.DBusException;
@@ -72,24 +68,10 @@ public class DBusSignal extends Message
          super(source, objectpath, type, name, sig, parameters, serial);
       }
    }
-   private static Map<Class<? extends DBusSignal>, Type[]> typeCache = new HashMap<Class<? extends DBusSignal>, Type[]>();
-   private static Map<String, Class<? extends DBusSignal>> classCache = new HashMap<String, Class<? extends DBusSignal>>();
-   private static Map<Class<? extends DBusSignal>, Constructor<? extends DBusSignal>> conCache = new HashMap<Class<? extends DBusSignal>, Constructor<? extends DBusSignal>>();
-   private static Map<String, String> signames = new HashMap<String, String>();
-   private static Map<String, String> intnames = new HashMap<String, String>();
    private Class<? extends DBusSignal> c;
    private boolean bodydone = false;
    private byte[] blen;
 
-   static void addInterfaceMap(String java, String dbus)
-   {
-      intnames.put(dbus, java);
-   }
-   static void addSignalMap(String java, String dbus)
-   {
-      signames.put(dbus, java);
-   }
-   
    static DBusSignal createSignal(Class<? extends DBusSignal> c, String source, String objectpath, String sig, long serial, Object... parameters) throws DBusException
    {
       String type = "";
@@ -108,9 +90,9 @@ public class DBusSignal extends Message
    @SuppressWarnings("unchecked")
    private static Class<? extends DBusSignal> createSignalClass(String intname, String signame) throws DBusException
    {
-		String name = intname+'$'+signame;
-      Class<? extends DBusSignal> c = classCache.get(name);
-		if (null == c) c = DBusMatchRule.getCachedSignalType(name);
+		String key = intname+'$'+signame;
+      String name = key;
+      Class<? extends DBusSignal> c = TypeRegistry.getSignalClass(key);
 		if (null != c) return c;
       do {
          try {
@@ -120,34 +102,21 @@ public class DBusSignal extends Message
       } while (null == c && name.matches(".*\\..*"));
 		if (null == c) 
 			throw new DBusException(_("Could not create class from signal ")+intname+'.'+signame);
-		classCache.put(name, c);
+		TypeRegistry.putSignalClass(key, c);
       return c;
    }
    @SuppressWarnings("unchecked")
    DBusSignal createReal(AbstractConnection conn) throws DBusException
    {
-      String intname = intnames.get(getInterface());
-      String signame = signames.get(getName());
+      String intname = TypeRegistry.getInterfaceName(getInterface());
+      String signame = TypeRegistry.getSignalName(getName());
       if (null == intname) intname = getInterface();
       if (null == signame) signame = getName();
       if (null == c) 
          c = createSignalClass(intname,signame);
       if (Debug.debug) Debug.print(Debug.DEBUG, "Converting signal to type: "+c);
-      Type[] types = typeCache.get(c);
-      Constructor<? extends DBusSignal> con = conCache.get(c);
-      if (null == types) {
-         con = (Constructor<? extends DBusSignal>) c.getDeclaredConstructors()[0];
-         conCache.put(c, con);
-         Type[] ts = con.getGenericParameterTypes();
-         types = new Type[ts.length-1];
-         for (int i = 1; i < ts.length; i++)
-            if (ts[i] instanceof TypeVariable)
-               for (Type b: ((TypeVariable<GenericDeclaration>) ts[i]).getBounds())
-                  types[i-1] = b;
-            else
-               types[i-1] = ts[i];
-         typeCache.put(c, types);
-      }
+      Type[] types = TypeRegistry.getSignalTypes(c);
+      Constructor<? extends DBusSignal> con = TypeRegistry.getSignalConstructor(c);
 
       try {
          DBusSignal s;
@@ -214,19 +183,7 @@ public class DBusSignal extends Message
       String sig = null;
       if (0 < args.length) {
          try {
-            Type[] types = typeCache.get(tc);
-            if (null == types) {
-               Constructor<? extends DBusSignal> con = (Constructor<? extends DBusSignal>) tc.getDeclaredConstructors()[0];
-               conCache.put(tc, con);
-               Type[] ts = con.getGenericParameterTypes();
-               types = new Type[ts.length-1];
-               for (int i = 1; i <= types.length; i++) 
-                  if (ts[i] instanceof TypeVariable)
-                     types[i-1] = ((TypeVariable<GenericDeclaration>) ts[i]).getBounds()[0];
-                  else
-                     types[i-1] = ts[i];
-               typeCache.put(tc, types);
-            }
+            Type[] types = TypeRegistry.getSignalTypes(tc);
             sig = Marshalling.getDBusType(types);
             hargs.add(new Object[] { Message.HeaderField.SIGNATURE, new Object[] { ArgumentType.SIGNATURE_STRING, sig } });
             headers.put(Message.HeaderField.SIGNATURE,sig);
@@ -246,7 +203,7 @@ public class DBusSignal extends Message
    {
       if (bodydone) return;
 
-      Type[] types = typeCache.get(getClass());
+      Type[] types = TypeRegistry.getSignalTypes(getClass());
       Object[] args = Marshalling.convertParameters(getParameters(), types, conn);
       setArgs(args);
       String sig = getSig();
@@ -0,0 +1,240 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import static org.freedesktop.dbus.Gettext._;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.DBusExecutionException;
+
+import cx.ath.matthew.debug.Debug;
+
+/**
+ * Publishes signals of one type to any number of subscribers, only delivering
+ * as many signals as each subscriber has requested.
+ * <p>
+ * Signals are put in the buffer of each subscription by the thread reading
+ * from the connection, in the order they arrive, and are delivered to the
+ * subscriber by one worker thread at a time. The buffer holds at most the
+ * number of signals given when subscribing, whatever the outstanding
+ * demand. When it is full the overflow policy of the subscription decides
+ * whether the oldest or the newest signal is dropped, or whether the
+ * subscription fails with an error.
+ * </p>
+ * Publishers are created with {@link AbstractConnection#getSignalPublisher(Class)}.
+ */
+public class DBusSignalPublisher<T extends DBusSignal>
+{
+   /** Drop the oldest buffered signal to make room for the new one. */
+   public static final int OVERFLOW_DROP_OLDEST = 0;
+   /** Drop the signal which has just been received. */
+   public static final int OVERFLOW_DROP_NEWEST = 1;
+   /** Cancel the subscription and call onError on the subscriber. */
+   public static final int OVERFLOW_ERROR = 2;
+   /** The number of signals buffered per subscription by default. */
+   public static final int DEFAULT_BUFFER_SIZE = 256;
+
+   /** Only buffers the signals, so it can always run on the connection thread. */
+   private class _handler implements DBusSigHandler<T>, AbstractConnection._orderedhandler
+   {
+      public void handle(T s)
+      {
+         for (_subscription sub: subscriptions)
+            sub.offer(s);
+      }
+   }
+   private class _subscription implements DBusSignalSubscription
+   {
+      private DBusSignalSubscriber<? super T> subscriber;
+      private LinkedList<T> buffer = new LinkedList<T>();
+      private int buffersize;
+      private int overflow;
+      private long requested = 0;
+      private boolean cancelled = false;
+      private boolean done = false;
+      private Throwable error = null;
+      private AtomicInteger wip = new AtomicInteger();
+      private Runnable drainer = new Runnable() {
+         public void run() { drainLoop(); }
+      };
+      public _subscription(DBusSignalSubscriber<? super T> subscriber, int buffersize, int overflow)
+      {
+         this.subscriber = subscriber;
+         this.buffersize = buffersize;
+         this.overflow = overflow;
+      }
+      /**
+       * Buffer a signal, and deliver it on a worker thread if there is demand.
+       * This is called on the connection thread, so it must not block.
+       */
+      void offer(T s)
+      {
+         synchronized (this) {
+            if (cancelled || done) return;
+            if (buffer.size() >= buffersize) {
+               if (Debug.debug) Debug.print(Debug.VERBOSE, "Signal buffer full for "+subscriber);
+               switch (overflow) {
+                  case OVERFLOW_DROP_OLDEST:
+                     if (0 == buffer.size()) break;
+                     buffer.removeFirst();
+                     buffer.addLast(s);
+                     break;
+                  case OVERFLOW_DROP_NEWEST:
+                     break;
+                  default:
+                     buffer.clear();
+                     error = new DBusExecutionException(_("Signal buffer overflow"));
+                     done = true;
+               }
+            } else
+               buffer.addLast(s);
+            if (0 == requested && !done) return;
+         }
+         if (0 == wip.getAndIncrement())
+            conn.addRunnable(drainer);
+      }
+      void complete()
+      {
+         synchronized (this) {
+            done = true;
+         }
+         drain();
+      }
+      public void request(long n)
+      {
+         synchronized (this) {
+            if (n <= 0) {
+               buffer.clear();
+               error = new IllegalArgumentException(_("Number of signals requested must be positive"));
+               done = true;
+            } else {
+               requested += n;
+               if (requested < 0) requested = Long.MAX_VALUE;
+            }
+         }
+         drain();
+      }
+      public void cancel()
+      {
+         synchronized (this) {
+            cancelled = true;
+            buffer.clear();
+         }
+         subscriptions.remove(this);
+      }
+      private void drain()
+      {
+         if (0 == wip.getAndIncrement())
+            drainLoop();
+      }
+      /** Deliver signals while there is demand. Only one thread runs this at a time. */
+      private void drainLoop()
+      {
+         int missed = 1;
+         do {
+            while (true) {
+               T s = null;
+               Throwable err = null;
+               synchronized (this) {
+                  if (cancelled) break;
+                  if (null != error) {
+                     err = error;
+                     cancelled = true;
+                  } else if (requested > 0 && buffer.size() > 0) {
+                     s = buffer.removeFirst();
+                     if (requested != Long.MAX_VALUE) requested--;
+                  } else if (done && buffer.size() == 0) {
+                     cancelled = true;
+                  } else break;
+               }
+               try {
+                  if (null != s) subscriber.onNext(s);
+                  else {
+                     subscriptions.remove(this);
+                     if (null != err) subscriber.onError(err);
+                     else subscriber.onComplete();
+                  }
+               } catch (RuntimeException Re) {
+                  if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, Re);
+                  cancel();
+               }
+            }
+            missed = wip.addAndGet(-missed);
+         } while (0 != missed);
+      }
+   }
+
+   private AbstractConnection conn;
+   private DBusMatchRule rule;
+   private _handler handler;
+   private List<_subscription> subscriptions;
+   private boolean closed = false;
+   DBusSignalPublisher(AbstractConnection conn, DBusMatchRule rule) throws DBusException
+   {
+      this.conn = conn;
+      this.rule = rule;
+      this.handler = new _handler();
+      this.subscriptions = new CopyOnWriteArrayList<_subscription>();
+      conn.addSigHandler(rule, handler);
+   }
+   /**
+    * Subscribe to signals with the default buffer size, failing the subscription when the buffer overflows.
+    * @param subscriber The subscriber.
+    */
+   public void subscribe(DBusSignalSubscriber<? super T> subscriber)
+   {
+      subscribe(subscriber, DEFAULT_BUFFER_SIZE, OVERFLOW_ERROR);
+   }
+   /**
+    * Subscribe to signals.
+    * @param subscriber The subscriber.
+    * @param buffersize The maximum number of signals to hold for the subscriber, at least 1.
+    * @param overflow What to do when the buffer is full. One of OVERFLOW_DROP_OLDEST, OVERFLOW_DROP_NEWEST or OVERFLOW_ERROR.
+    */
+   public void subscribe(DBusSignalSubscriber<? super T> subscriber, int buffersize, int overflow)
+   {
+      if (null == subscriber) throw new NullPointerException();
+      if (buffersize < 1 || overflow < OVERFLOW_DROP_OLDEST || overflow > OVERFLOW_ERROR)
+         throw new IllegalArgumentException(_("Invalid buffer size or overflow policy"));
+      _subscription sub = new _subscription(subscriber, buffersize, overflow);
+      subscriber.onSubscribe(sub);
+      synchronized (this) {
+         if (!closed) {
+            subscriptions.add(sub);
+            return;
+         }
+      }
+      sub.complete();
+   }
+   /**
+    * Stop listening for signals. Subscribers will have onComplete called once
+    * they have received the signals already buffered for them.
+    * @throws DBusException If removing the match on the bus failed.
+    */
+   public void close() throws DBusException
+   {
+      synchronized (this) {
+         if (closed) return;
+         closed = true;
+      }
+      try {
+         conn.removeSigHandler(rule, handler);
+      } finally {
+         for (_subscription sub: subscriptions)
+            sub.complete();
+      }
+   }
+}
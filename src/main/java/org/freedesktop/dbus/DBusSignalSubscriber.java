@@ -0,0 +1,41 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+/** Receive signals from a DBusSignalPublisher.
+ *  Signals are only delivered once they have been requested through the
+ *  DBusSignalSubscription passed to onSubscribe. Calls to a single subscriber
+ *  are never made concurrently, but may be made from different threads.
+ */
+public interface DBusSignalSubscriber<T extends DBusSignal>
+{
+   /**
+    * Called once, before any other method, when the subscription is created.
+    * @param s The subscription, used to request signals or cancel.
+    */
+   public void onSubscribe(DBusSignalSubscription s);
+   /**
+    * Handle a signal.
+    * @param s The signal. As with DBusSigHandler this will be an
+    * instance of the signal class if one exists.
+    */
+   public void onNext(T s);
+   /**
+    * Called if the subscription fails, for instance because the
+    * buffer overflowed. No further methods will be called.
+    */
+   public void onError(Throwable t);
+   /**
+    * Called when the publisher is closed and all buffered signals
+    * have been delivered. No further methods will be called.
+    */
+   public void onComplete();
+}
@@ -0,0 +1,29 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+/**
+ * A link between a DBusSignalPublisher and one of its subscribers.
+ */
+public interface DBusSignalSubscription
+{
+   /**
+    * Request more signals.
+    * Signals received while there is no outstanding demand are
+    * buffered according to the subscription's overflow policy.
+    * @param n The number of additional signals to deliver. Must be positive.
+    */
+   public void request(long n);
+   /**
+    * Stop receiving signals and discard any which are buffered.
+    */
+   public void cancel();
+}
@@ -19,9 +19,7 @@ import java.net.ServerSocket;
 import java.text.MessageFormat;
 import java.text.ParseException;
 import java.util.Random;
-import java.util.Vector;
 
-import org.freedesktop.DBus;
 import org.freedesktop.dbus.exceptions.DBusException;
 
 import cx.ath.matthew.debug.Debug;
@@ -102,38 +100,11 @@ public class DirectConnection extends AbstractConnection
    DBusInterface dynamicProxy(String path) throws DBusException
    {
       try {
-         DBus.Introspectable intro = (DBus.Introspectable) getRemoteObject(path, DBus.Introspectable.class);
-         String data = intro.Introspect();
-         String[] tags = data.split("[<>]");
-         Vector<String> ifaces = new Vector<String>();
-         for (String tag: tags) {
-            if (tag.startsWith("interface")) {
-               ifaces.add(tag.replaceAll("^interface *name *= *['\"]([^'\"]*)['\"].*$", "$1"));
-            }
-         }
-         Vector<Class<? extends Object>> ifcs = new Vector<Class<? extends Object>>();
-         for(String iface: ifaces) {
-            int j = 0;
-            while (j >= 0) {
-               try {
-                  ifcs.add(Class.forName(iface));
-                  break;
-               } catch (Exception e) {}
-               j = iface.lastIndexOf(".");
-               char[] cs = iface.toCharArray();
-               if (j >= 0) {
-                  cs[j] = '$';
-                  iface = String.valueOf(cs);
-               }
-            }
-         }
-
-         if (ifcs.size() == 0) throw new DBusException(_("Could not find an interface to cast to"));
-
+         Class<?>[] ifcs = introspectionCache.getInterfaces(null, path);
          RemoteObject ro = new RemoteObject(null, path, null, false);
          DBusInterface newi =  (DBusInterface)
-            Proxy.newProxyInstance(ifcs.get(0).getClassLoader(), 
-                                   ifcs.toArray(new Class[0]),
+            Proxy.newProxyInstance(ifcs[0].getClassLoader(), 
+                                   ifcs,
                                    new RemoteInvocationHandler(this, ro));
          importedObjects.put(newi, ro);
          return newi;
@@ -145,10 +116,7 @@ public class DirectConnection extends AbstractConnection
    
    DBusInterface getExportedObject(String path) throws DBusException
    {
-      ExportedObject o = null;
-      synchronized (exportedObjects) {
-         o = exportedObjects.get(path);
-      }
+      ExportedObject o = objectTree.get(path);
       if (null != o && null == o.object.get()) {
          unExportObject(path);
          o = null;
@@ -213,36 +181,22 @@ public class DirectConnection extends AbstractConnection
          throw new DBusException(_("DBusInterfaces cannot be declared outside a package"));
       
       RemoteObject ro = new RemoteObject(null, objectpath, type, false);
-      DBusInterface i =  (DBusInterface) Proxy.newProxyInstance(type.getClassLoader(), 
-            new Class[] { type }, new RemoteInvocationHandler(this, ro));
+      DBusInterface i = RemoteStub.create(type, this, ro);
+      if (null == i)
+         i = (DBusInterface) Proxy.newProxyInstance(type.getClassLoader(), 
+               new Class[] { type }, new RemoteInvocationHandler(this, ro));
       importedObjects.put(i, ro);
       return i;
    }
    protected <T extends DBusSignal> void removeSigHandler(DBusMatchRule rule, DBusSigHandler<T> handler) throws DBusException
    {
       SignalTuple key = new SignalTuple(rule.getInterface(), rule.getMember(), rule.getObject(), rule.getSource());
-      synchronized (handledSignals) {
-         Vector<DBusSigHandler<? extends DBusSignal>> v = handledSignals.get(key);
-         if (null != v) {
-            v.remove(handler);
-            if (0 == v.size()) {
-               handledSignals.remove(key);
-            }
-         } 
-      }
+      removeHandledSignal(key, handler);
    }
    protected <T extends DBusSignal> void addSigHandler(DBusMatchRule rule, DBusSigHandler<T> handler) throws DBusException
    {
       SignalTuple key = new SignalTuple(rule.getInterface(), rule.getMember(), rule.getObject(), rule.getSource());
-      synchronized (handledSignals) {
-         Vector<DBusSigHandler<? extends DBusSignal>> v = handledSignals.get(key);
-         if (null == v) {
-            v = new Vector<DBusSigHandler<? extends DBusSignal>>();
-            v.add(handler);
-            handledSignals.put(key, v);
-         } else
-            v.add(handler);
-      }
+      addHandledSignal(key, handler);
    }
    DBusInterface getExportedObject(String source, String path) throws DBusException
    {
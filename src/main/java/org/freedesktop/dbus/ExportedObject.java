@@ -24,7 +24,9 @@ import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.freedesktop.dbus.exceptions.DBusException;
 import org.freedesktop.dbus.exceptions.DBusExecutionException;
@@ -60,7 +62,7 @@ class ExportedObject
             if (null != c.getAnnotation(DBusInterfaceName.class)) {
                String name = ((DBusInterfaceName) c.getAnnotation(DBusInterfaceName.class)).value();
                introspectiondata += " <interface name=\""+name+"\">\n";
-               DBusSignal.addInterfaceMap(c.getName(), name);
+               TypeRegistry.addInterfaceName(c.getName(), name);
             } else {
                // don't let people export things which don't have a
                // valid D-Bus interface name
@@ -110,13 +112,16 @@ class ExportedObject
                   }
                   introspectiondata += "  </method>\n";
                   m.put(new MethodTuple(name, ms), meth);
+                  MethodCodec.get(meth);
+                  if (c.isAnnotationPresent(DBusInline.class) || meth.isAnnotationPresent(DBusInline.class))
+                     inlinemethods.add(meth);
                }
             for (Class sig: c.getDeclaredClasses()) 
                if (DBusSignal.class.isAssignableFrom(sig)) {
                   String name;
                   if (sig.isAnnotationPresent(DBusMemberName.class)) {
                      name = ((DBusMemberName) sig.getAnnotation(DBusMemberName.class)).value();
-                     DBusSignal.addSignalMap(sig.getSimpleName(), name);
+                     TypeRegistry.addSignalName(sig.getSimpleName(), name);
                   } else
                      name = sig.getSimpleName();
                   if (name.length() > DBusConnection.MAX_NAME_LENGTH) 
@@ -139,6 +144,7 @@ class ExportedObject
       return m;
    }
    Map<MethodTuple,Method> methods;
+   Set<Method> inlinemethods;
    Reference<DBusInterface> object;
    String introspectiondata;
    public ExportedObject(DBusInterface object, boolean weakreferences) throws DBusException
@@ -148,6 +154,7 @@ class ExportedObject
       else
          this.object = new StrongReference<DBusInterface>(object);
       introspectiondata = "";
+      inlinemethods = new HashSet<Method>();
       methods = getExportedMethods(object.getClass());
       introspectiondata += 
          " <interface name=\"org.freedesktop.DBus.Introspectable\">\n"+
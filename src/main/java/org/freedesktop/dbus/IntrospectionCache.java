@@ -0,0 +1,268 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import static org.freedesktop.dbus.Gettext._;
+
+import java.io.StringReader;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.freedesktop.DBus;
+import org.freedesktop.dbus.exceptions.DBusException;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+import cx.ath.matthew.debug.Debug;
+
+/**
+ * Caches the interfaces of remote objects, found by introspecting them,
+ * for creating dynamic proxies.
+ * <p>
+ * The interfaces are keyed on the bus name and object path. On a bus
+ * connection, the interfaces of a name are dropped when its owner changes.
+ * The Java classes for interface names are cached for all connections.
+ * </p>
+ */
+class IntrospectionCache
+{
+   /** The number of objects whose interfaces are kept. */
+   static final int MAX_OBJECTS = 1024;
+   /** The number of interface names whose classes are kept. */
+   static final int MAX_INTERFACES = 1024;
+
+   private static final Map<String, Class<? extends Object>> classes = new ConcurrentHashMap<String, Class<? extends Object>>();
+   private static final SAXParserFactory factory = SAXParserFactory.newInstance();
+   private static final CallDescriptor INTROSPECT;
+   static {
+      factory.setValidating(false);
+      factory.setNamespaceAware(false);
+      try {
+         INTROSPECT = CallDescriptor.get(DBus.Introspectable.class.getMethod("Introspect"));
+      } catch (NoSuchMethodException NSMe) {
+         throw new RuntimeException(NSMe);
+      }
+   }
+
+   /**
+    * Finds the interfaces of the object in the introspection data,
+    * ignoring those of its children.
+    */
+   private static class _parser extends DefaultHandler
+   {
+      List<String> interfaces = new ArrayList<String>();
+      private int depth = 0;
+      public InputSource resolveEntity(String publicId, String systemId)
+      {
+         // never fetch the DTD
+         return new InputSource(new StringReader(""));
+      }
+      public void startElement(String uri, String localName, String qName, Attributes attributes)
+      {
+         if (1 == depth++ && "interface".equals(qName)) {
+            String name = attributes.getValue("name");
+            if (null != name) interfaces.add(name);
+         }
+      }
+      public void endElement(String uri, String localName, String qName)
+      {
+         depth--;
+      }
+   }
+   private class _lru extends LinkedHashMap<String, Class<?>[]>
+   {
+      private static final long serialVersionUID = 1L;
+      public _lru()
+      {
+         super(16, 0.75f, true);
+      }
+      protected boolean removeEldestEntry(Map.Entry<String, Class<?>[]> eldest)
+      {
+         return size() > MAX_OBJECTS;
+      }
+   }
+   private class _ownerhandler implements DBusSigHandler<DBus.NameOwnerChanged>
+   {
+      public void handle(DBus.NameOwnerChanged s)
+      {
+         invalidate(s.name);
+         if (null != s.old_owner && 0 < s.old_owner.length())
+            invalidate(s.old_owner);
+      }
+   }
+
+   /**
+    * Get the names of the interfaces of an object from its introspection data.
+    */
+   static List<String> parse(String data) throws DBusException
+   {
+      _parser p = new _parser();
+      try {
+         SAXParser parser;
+         synchronized (factory) {
+            parser = factory.newSAXParser();
+         }
+         parser.parse(new InputSource(new StringReader(data)), p);
+      } catch (Exception e) {
+         if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
+         throw new DBusException(_("Failed to parse introspection data: ")+e.getMessage());
+      }
+      return p.interfaces;
+   }
+   /**
+    * Get the class of an interface. If there is no class with the
+    * interface name, the names of nested classes are tried.
+    * @return The class, or null if there is none.
+    */
+   static Class<? extends Object> getInterfaceClass(String iface)
+   {
+      Class<? extends Object> c = classes.get(iface);
+      if (null != c) return IntrospectionCache.class.equals(c) ? null : c;
+      String name = iface;
+      int j = 0;
+      while (j >= 0) {
+         try {
+            c = Class.forName(name);
+            break;
+         } catch (Exception e) {}
+         j = name.lastIndexOf(".");
+         char[] cs = name.toCharArray();
+         if (j >= 0) {
+            cs[j] = '$';
+            name = String.valueOf(cs);
+         }
+      }
+      if (classes.size() < MAX_INTERFACES)
+         // IntrospectionCache itself means there is no class
+         classes.put(iface, null == c ? IntrospectionCache.class : c);
+      return c;
+   }
+   private static String key(String source, String path)
+   {
+      return (null == source ? "" : source)+" "+path;
+   }
+
+   private AbstractConnection conn;
+   private _lru objects = new _lru();
+   private boolean watching = false;
+   IntrospectionCache(AbstractConnection conn)
+   {
+      this.conn = conn;
+   }
+   /**
+    * Get the interfaces of a remote object, introspecting it if they are not cached.
+    * @param source The bus name of the object, or null on a peer connection.
+    * @throws DBusException If it cannot be introspected or none of its interfaces has a class.
+    */
+   Class<?>[] getInterfaces(String source, String path) throws DBusException
+   {
+      String key = key(source, path);
+      Class<?>[] ifcs;
+      synchronized (this) {
+         ifcs = objects.get(key);
+      }
+      if (null != ifcs) return ifcs;
+      if (Debug.debug) Debug.print(Debug.INFO, "Introspecting "+path+" on "+source+" for dynamic proxy creation");
+      RemoteObject ro = new RemoteObject(source, path, DBus.Introspectable.class, false);
+      String data = (String) RemoteInvocationHandler.executeRemoteMethod(ro, INTROSPECT, conn, RemoteInvocationHandler.CALL_TYPE_SYNC, null);
+      return put(key, data);
+   }
+   /**
+    * Introspect all the objects in a list whose interfaces are not cached
+    * at once, rather than one after another.
+    * @param paths The list. Anything other than ObjectPaths is ignored.
+    */
+   void prefetch(List<? extends Object> paths)
+   {
+      if (paths.size() < 2 || Thread.currentThread() == conn.thread || null == conn.outgoing) return;
+      List<String> keys = new ArrayList<String>();
+      List<MethodCall> calls = new ArrayList<MethodCall>();
+      for (Object o: paths) {
+         if (!(o instanceof ObjectPath)) continue;
+         ObjectPath p = (ObjectPath) o;
+         String source = conn instanceof DirectConnection ? null : p.source;
+         if (null == source && conn instanceof DBusConnection) continue;
+         String key = key(source, p.path);
+         if (keys.contains(key)) continue;
+         synchronized (this) {
+            if (objects.containsKey(key)) continue;
+         }
+         if (null != conn.objectTree.get(p.path)) continue;
+         RemoteObject ro = new RemoteObject(source, p.path, DBus.Introspectable.class, false);
+         keys.add(key);
+         calls.add(RemoteInvocationHandler.createCall(ro, INTROSPECT, conn, RemoteInvocationHandler.CALL_TYPE_SYNC));
+      }
+      if (calls.size() < 2) return;
+      if (Debug.debug) Debug.print(Debug.INFO, "Introspecting "+calls.size()+" objects for dynamic proxy creation");
+      conn.queueOutgoing(calls.toArray(new MethodCall[calls.size()]));
+      long deadline = System.currentTimeMillis() + MethodCall.getDefaultTimeout();
+      for (int i = 0; i < calls.size(); i++) {
+         long left = deadline - System.currentTimeMillis();
+         Message reply = left > 0 ? calls.get(i).getReply(left) : null;
+         // failures are left to getInterfaces to report
+         if (!(reply instanceof MethodReturn)) continue;
+         try {
+            put(keys.get(i), (String) reply.getParameters()[0]);
+         } catch (Exception e) {
+            if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
+         }
+      }
+   }
+   /**
+    * Drop the interfaces of all the objects of a bus name.
+    */
+   synchronized void invalidate(String source)
+   {
+      String prefix = key(source, "");
+      Iterator<String> i = objects.keySet().iterator();
+      while (i.hasNext())
+         if (i.next().startsWith(prefix))
+            i.remove();
+   }
+   private Class<?>[] put(String key, String data) throws DBusException
+   {
+      if (Debug.debug) Debug.print(Debug.VERBOSE, "Got introspection data: "+data);
+      List<Class<? extends Object>> ifcs = new ArrayList<Class<? extends Object>>();
+      for (String iface: parse(data)) {
+         if (Debug.debug) Debug.print(Debug.DEBUG, "Trying interface "+iface);
+         Class<? extends Object> c = getInterfaceClass(iface);
+         if (null != c && !ifcs.contains(c)) ifcs.add(c);
+      }
+      if (ifcs.size() == 0) throw new DBusException(_("Could not find an interface to cast to"));
+      Class<?>[] rv = ifcs.toArray(new Class<?>[0]);
+      synchronized (this) {
+         objects.put(key, rv);
+         if (watching) return rv;
+         watching = true;
+      }
+      if (conn instanceof DBusConnection)
+         try {
+            ((DBusConnection) conn).getNameOwnerRegistry().addHandler(new _ownerhandler());
+         } catch (DBusException DBe) {
+            if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
+            synchronized (this) {
+               watching = false;
+               objects.clear();
+            }
+         }
+      return rv;
+   }
+}
@@ -14,15 +14,14 @@ import static org.freedesktop.dbus.Gettext._;
 
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
 import java.lang.reflect.GenericArrayType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.lang.reflect.TypeVariable;
 import java.text.MessageFormat;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
@@ -39,7 +38,6 @@ import cx.ath.matthew.debug.Debug;
  */
 public class Marshalling
 {
-   private static Map<Type, String[]> typeCache = new HashMap<Type, String[]>();
    /**
     * Will return the DBus type corresponding to the given Java type.
     * Note, container type should have their ParameterizedType not their
@@ -66,11 +64,7 @@ public class Marshalling
     */
    public static String[] getDBusType(Type c) throws DBusException
    {
-      String[] cached = typeCache.get(c);
-      if (null != cached) return cached;
-      cached = getDBusType(c, false);
-      typeCache.put(c, cached);
-      return cached;
+      return TypeRegistry.getDBusType(c);
    }
    /**
     * Will return the DBus type corresponding to the given Java type.
@@ -85,27 +79,20 @@ public class Marshalling
    {
       return recursiveGetDBusType(c, basic, 0);
    }
-   private static StringBuffer[] out = new StringBuffer[10];
    @SuppressWarnings("unchecked")
    public static String[] recursiveGetDBusType(Type c, boolean basic, int level) throws DBusException
    {
-      if (out.length <= level) {
-         StringBuffer[] newout = new StringBuffer[out.length];
-         System.arraycopy(out, 0, newout, 0, out.length);
-         out = newout;
-      }
-      if (null == out[level]) out[level] = new StringBuffer();
-      else out[level].delete(0, out[level].length());      
+      StringBuffer out = new StringBuffer();
 
       if (basic && !(c instanceof Class))
          throw new DBusException(c+_(" is not a basic type"));
 
-      if (c instanceof TypeVariable) out[level].append((char) Message.ArgumentType.VARIANT);
+      if (c instanceof TypeVariable) out.append((char) Message.ArgumentType.VARIANT);
       else if (c instanceof GenericArrayType) {
-         out[level].append((char) Message.ArgumentType.ARRAY);
+         out.append((char) Message.ArgumentType.ARRAY);
          String[] s = recursiveGetDBusType(((GenericArrayType) c).getGenericComponentType(), false, level+1);
          if (s.length != 1) throw new DBusException(_("Multi-valued array types not permitted"));
-         out[level].append(s[0]);
+         out.append(s[0]);
       } else if ((c instanceof Class && 
                DBusSerializable.class.isAssignableFrom((Class<? extends Object>) c)) ||
             (c instanceof ParameterizedType &&
@@ -134,39 +121,39 @@ public class Marshalling
       } 
       else if (c instanceof ParameterizedType) {
          ParameterizedType p = (ParameterizedType) c;
-         if (p.getRawType().equals(Map.class)) {
-            out[level].append("a{");
+         if (Map.class.isAssignableFrom((Class<? extends Object>) p.getRawType())) {
+            out.append("a{");
             Type[] t = p.getActualTypeArguments();
             try {
                String[] s = recursiveGetDBusType(t[0], true, level+1);
                if (s.length != 1) throw new DBusException(_("Multi-valued array types not permitted"));
-               out[level].append(s[0]);
+               out.append(s[0]);
                s = recursiveGetDBusType(t[1], false, level+1);
                if (s.length != 1) throw new DBusException(_("Multi-valued array types not permitted"));
-               out[level].append(s[0]);
+               out.append(s[0]);
             } catch (ArrayIndexOutOfBoundsException AIOOBe) {
                if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, AIOOBe);
                throw new DBusException(_("Map must have 2 parameters"));
             }
-            out[level].append('}');
+            out.append('}');
          }
          else if (List.class.isAssignableFrom((Class<? extends Object>) p.getRawType())) {
             for (Type t: p.getActualTypeArguments()) {
                if (Type.class.equals(t)) 
-                  out[level].append((char) Message.ArgumentType.SIGNATURE);
+                  out.append((char) Message.ArgumentType.SIGNATURE);
                else {
                   String[] s = recursiveGetDBusType(t, false, level+1);
                   if (s.length != 1) throw new DBusException(_("Multi-valued array types not permitted"));
-                  out[level].append((char) Message.ArgumentType.ARRAY);
-                  out[level].append(s[0]);
+                  out.append((char) Message.ArgumentType.ARRAY);
+                  out.append(s[0]);
                }
             }
          } 
          else if (p.getRawType().equals(Variant.class)) {
-            out[level].append((char) Message.ArgumentType.VARIANT);
+            out.append((char) Message.ArgumentType.VARIANT);
          }
          else if (DBusInterface.class.isAssignableFrom((Class<? extends Object>) p.getRawType())) {
-            out[level].append((char) Message.ArgumentType.OBJECT_PATH);
+            out.append((char) Message.ArgumentType.OBJECT_PATH);
          }
          else if (Tuple.class.isAssignableFrom((Class<? extends Object>) p.getRawType())) {
             Type[] ts = p.getActualTypeArguments();
@@ -180,70 +167,59 @@ public class Marshalling
             throw new DBusException(_("Exporting non-exportable parameterized type ")+c);
       }
       
-      else if (c.equals(Byte.class)) out[level].append((char) Message.ArgumentType.BYTE);
-      else if (c.equals(Byte.TYPE)) out[level].append((char) Message.ArgumentType.BYTE);
-      else if (c.equals(Boolean.class)) out[level].append((char) Message.ArgumentType.BOOLEAN);
-      else if (c.equals(Boolean.TYPE)) out[level].append((char) Message.ArgumentType.BOOLEAN);
-      else if (c.equals(Short.class)) out[level].append((char) Message.ArgumentType.INT16);
-      else if (c.equals(Short.TYPE)) out[level].append((char) Message.ArgumentType.INT16);
-      else if (c.equals(UInt16.class)) out[level].append((char) Message.ArgumentType.UINT16);
-      else if (c.equals(Integer.class)) out[level].append((char) Message.ArgumentType.INT32);
-      else if (c.equals(Integer.TYPE)) out[level].append((char) Message.ArgumentType.INT32);
-      else if (c.equals(UInt32.class)) out[level].append((char) Message.ArgumentType.UINT32);
-      else if (c.equals(Long.class)) out[level].append((char) Message.ArgumentType.INT64);
-      else if (c.equals(Long.TYPE)) out[level].append((char) Message.ArgumentType.INT64);
-      else if (c.equals(UInt64.class)) out[level].append((char) Message.ArgumentType.UINT64);
-      else if (c.equals(Double.class)) out[level].append((char) Message.ArgumentType.DOUBLE);
-      else if (c.equals(Double.TYPE)) out[level].append((char) Message.ArgumentType.DOUBLE);
-      else if (c.equals(Float.class) && AbstractConnection.FLOAT_SUPPORT) out[level].append((char) Message.ArgumentType.FLOAT);
-      else if (c.equals(Float.class)) out[level].append((char) Message.ArgumentType.DOUBLE);
-      else if (c.equals(Float.TYPE) && AbstractConnection.FLOAT_SUPPORT) out[level].append((char) Message.ArgumentType.FLOAT);
-      else if (c.equals(Float.TYPE)) out[level].append((char) Message.ArgumentType.DOUBLE);
-      else if (c.equals(String.class)) out[level].append((char) Message.ArgumentType.STRING);
-      else if (c.equals(Variant.class)) out[level].append((char) Message.ArgumentType.VARIANT);
+      else if (c.equals(Byte.class)) out.append((char) Message.ArgumentType.BYTE);
+      else if (c.equals(Byte.TYPE)) out.append((char) Message.ArgumentType.BYTE);
+      else if (c.equals(Boolean.class)) out.append((char) Message.ArgumentType.BOOLEAN);
+      else if (c.equals(Boolean.TYPE)) out.append((char) Message.ArgumentType.BOOLEAN);
+      else if (c.equals(Short.class)) out.append((char) Message.ArgumentType.INT16);
+      else if (c.equals(Short.TYPE)) out.append((char) Message.ArgumentType.INT16);
+      else if (c.equals(UInt16.class)) out.append((char) Message.ArgumentType.UINT16);
+      else if (c.equals(Integer.class)) out.append((char) Message.ArgumentType.INT32);
+      else if (c.equals(Integer.TYPE)) out.append((char) Message.ArgumentType.INT32);
+      else if (c.equals(UInt32.class)) out.append((char) Message.ArgumentType.UINT32);
+      else if (c.equals(Long.class)) out.append((char) Message.ArgumentType.INT64);
+      else if (c.equals(Long.TYPE)) out.append((char) Message.ArgumentType.INT64);
+      else if (c.equals(UInt64.class)) out.append((char) Message.ArgumentType.UINT64);
+      else if (c.equals(Double.class)) out.append((char) Message.ArgumentType.DOUBLE);
+      else if (c.equals(Double.TYPE)) out.append((char) Message.ArgumentType.DOUBLE);
+      else if (c.equals(Float.class) && AbstractConnection.FLOAT_SUPPORT) out.append((char) Message.ArgumentType.FLOAT);
+      else if (c.equals(Float.class)) out.append((char) Message.ArgumentType.DOUBLE);
+      else if (c.equals(Float.TYPE) && AbstractConnection.FLOAT_SUPPORT) out.append((char) Message.ArgumentType.FLOAT);
+      else if (c.equals(Float.TYPE)) out.append((char) Message.ArgumentType.DOUBLE);
+      else if (c.equals(String.class)) out.append((char) Message.ArgumentType.STRING);
+      else if (c.equals(Variant.class)) out.append((char) Message.ArgumentType.VARIANT);
       else if (c instanceof Class && 
-            DBusInterface.class.isAssignableFrom((Class<? extends Object>) c)) out[level].append((char) Message.ArgumentType.OBJECT_PATH);
+            DBusInterface.class.isAssignableFrom((Class<? extends Object>) c)) out.append((char) Message.ArgumentType.OBJECT_PATH);
       else if (c instanceof Class && 
-            Path.class.equals((Class<? extends Object>) c)) out[level].append((char) Message.ArgumentType.OBJECT_PATH);
+            Path.class.equals((Class<? extends Object>) c)) out.append((char) Message.ArgumentType.OBJECT_PATH);
       else if (c instanceof Class && 
-            ObjectPath.class.equals((Class<? extends Object>) c)) out[level].append((char) Message.ArgumentType.OBJECT_PATH);
+            ObjectPath.class.equals((Class<? extends Object>) c)) out.append((char) Message.ArgumentType.OBJECT_PATH);
       else if (c instanceof Class && 
             ((Class<? extends Object>) c).isArray()) {
          if (Type.class.equals(((Class<? extends Object>) c).getComponentType()))
-            out[level].append((char) Message.ArgumentType.SIGNATURE);
+            out.append((char) Message.ArgumentType.SIGNATURE);
          else {
-            out[level].append((char) Message.ArgumentType.ARRAY);
+            out.append((char) Message.ArgumentType.ARRAY);
             String[] s = recursiveGetDBusType(((Class<? extends Object>) c).getComponentType(), false, level+1);
             if (s.length != 1) throw new DBusException(_("Multi-valued array types not permitted"));
-            out[level].append(s[0]);
+            out.append(s[0]);
          }
       } else if (c instanceof Class && 
             Struct.class.isAssignableFrom((Class<? extends Object>) c)) {
-         out[level].append((char) Message.ArgumentType.STRUCT1);
-         Type[] ts = Container.getTypeCache(c);
-         if (null == ts) {
-            Field[] fs = ((Class<? extends Object>) c).getDeclaredFields();
-            ts = new Type[fs.length];
-            for (Field f : fs) {
-               Position p = f.getAnnotation(Position.class);
-               if (null == p) continue;
-               ts[p.value()] = f.getGenericType();
-           }
-            Container.putTypeCache(c, ts);
-         }
-
+         out.append((char) Message.ArgumentType.STRUCT1);
+         Type[] ts = TypeRegistry.getStructTypes((Class<? extends Object>) c);
          for (Type t: ts)
             if (t != null)
                for (String s: recursiveGetDBusType(t, false, level+1))
-                  out[level].append(s);
-         out[level].append(')');
+                  out.append(s);
+         out.append(')');
       } else {
          throw new DBusException(_("Exporting non-exportable type ")+c);
       }
 
-      if (Debug.debug) Debug.print(Debug.VERBOSE, "Converted Java type: "+c+" to D-Bus Type: "+out[level]);
+      if (Debug.debug) Debug.print(Debug.VERBOSE, "Converted Java type: "+c+" to D-Bus Type: "+out);
 
-      return new String[] { out[level].toString() };
+      return new String[] { out.toString() };
    }
 
    /**
@@ -437,21 +413,11 @@ public class Marshalling
             type instanceof Class &&
             Struct.class.isAssignableFrom((Class) type)) {
          if (Debug.debug) Debug.print(Debug.VERBOSE, "Creating Struct "+type+" from "+parameter);
-         Type[] ts = Container.getTypeCache(type);
-         if (null == ts) {
-            Field[] fs = ((Class) type).getDeclaredFields();
-            ts = new Type[fs.length];
-            for (Field f : fs) {
-               Position p = f.getAnnotation(Position.class);
-               if (null == p) continue;
-               ts[p.value()] = f.getGenericType();
-           }
-            Container.putTypeCache(type, ts);
-         }
+         Type[] ts = TypeRegistry.getStructTypes((Class) type);
 
          // recurse over struct contents
          parameter = deSerializeParameters((Object[]) parameter, ts, conn);
-         for (Constructor con: ((Class) type).getDeclaredConstructors()) {
+         for (Constructor con: TypeRegistry.getStructConstructors((Class) type)) {
             try {
                parameter = con.newInstance((Object[]) parameter);
                break;
@@ -526,6 +492,9 @@ public class Marshalling
 				dmap.entries[i][0] = deSerializeParameter(dmap.entries[i][0], maptypes[0], conn);
 				dmap.entries[i][1] = deSerializeParameter(dmap.entries[i][1], maptypes[1], conn);
 			}
+         Class<? extends Object> mc = (Class<? extends Object>) ((ParameterizedType) type).getRawType();
+         if (!Map.class.equals(mc) && !mc.isInterface() && !Modifier.isAbstract(mc.getModifiers()))
+            parameter = TypeConverter._map.copy(dmap, mc);
       }
       return parameter;
    }
@@ -127,6 +127,8 @@ public class Message
             new byte[6],
             new byte[7] };
    }
+   /** The signature of a signature, used when marshalling variants. */
+   private static final byte[] SIGNATURE_SIG = new byte[] { ArgumentType.SIGNATURE };
    /** Steps to increment the buffer array. */
    private static final int BUFFERINCREMENT = 20;
 
@@ -471,6 +473,37 @@ public class Message
     * @return The value of the field or null if unset.
     */
    public Object getHeader(byte type) { return headers.get(type); }
+   /**
+    * Appends an integer or boolean value without boxing it.
+    * @param type The D-Bus type to marshall the value as, an integer type other than UINT64 or BOOLEAN.
+    * @param l The value, with booleans as 0 or 1.
+    */
+   void appendPrimitive(byte type, long l)
+   {
+      pad(type);
+      switch (type) {
+         case ArgumentType.BYTE:
+            appendByte((byte) l);
+            break;
+         case ArgumentType.BOOLEAN:
+            appendint(0 == l ? 0 : 1, 4);
+            break;
+         default:
+            appendint(l, getAlignment(type));
+      }
+   }
+   /**
+    * Appends a floating point value without boxing it.
+    * @param type The D-Bus type to marshall the value as, DOUBLE or FLOAT.
+    */
+   void appendPrimitive(byte type, double d)
+   {
+      pad(type);
+      if (ArgumentType.FLOAT == type)
+         appendint(Float.floatToIntBits((float) d), 4);
+      else
+         appendint(Double.doubleToLongBits(d), 8);
+   }
    /**
     * Appends a value to the message.
     * The type of the value is read from a D-Bus signature and used to marshall 
@@ -481,7 +514,7 @@ public class Message
     * @return The offset into the signature of the end of this value's type.
     */
    @SuppressWarnings("unchecked")
-   private int appendone(byte[] sigb, int sigofs, Object data) throws DBusException
+   int appendone(byte[] sigb, int sigofs, Object data) throws DBusException
    {
       try {
          int i = sigofs;
@@ -687,16 +720,16 @@ public class Message
                // followed by the value.
                if (data instanceof Variant) {
                   Variant var = (Variant) data;
-                  appendone(new byte[] {ArgumentType.SIGNATURE}, 0, var.getSig());
-                  appendone((var.getSig()).getBytes(), 0, var.getValue());
+                  appendone(SIGNATURE_SIG, 0, var.getSig());
+                  appendone(TypeRegistry.getSignatureBytes(var.getSig()), 0, var.getValue());
                } else if (data instanceof Object[]) {
                   contents = (Object[]) data;
-                  appendone(new byte[] {ArgumentType.SIGNATURE}, 0, contents[0]);
-                  appendone(((String) contents[0]).getBytes(), 0, contents[1]);
+                  appendone(SIGNATURE_SIG, 0, contents[0]);
+                  appendone(TypeRegistry.getSignatureBytes((String) contents[0]), 0, contents[1]);
                } else {
                   String sig = Marshalling.getDBusType(data.getClass())[0];
-                  appendone(new byte[] {ArgumentType.SIGNATURE}, 0, sig);
-                  appendone((sig).getBytes(), 0, data);
+                  appendone(SIGNATURE_SIG, 0, sig);
+                  appendone(TypeRegistry.getSignatureBytes(sig), 0, data);
                }
                break;
          }
@@ -800,7 +833,7 @@ public class Message
     * @param contained converts nested arrays to Lists
     * @return The demarshalled value.
     */
-   private Object extractone(byte[] sigb, byte[] buf, int[] ofs, boolean contained) throws DBusException
+   Object extractone(byte[] sigb, byte[] buf, int[] ofs, boolean contained) throws DBusException
    {
       if (Debug.debug) Debug.print(Debug.VERBOSE, "Extracting type: "+((char)sigb[ofs[0]])+" from offset "+ofs[1]);
       Object rv = null;
@@ -810,7 +843,7 @@ public class Message
             rv = buf[ofs[1]++];
             break;
          case ArgumentType.UINT32:
-            rv = new UInt32(demarshallint(buf, ofs[1], 4));
+            rv = UInt32.valueOf(demarshallint(buf, ofs[1], 4));
             ofs[1] += 4;
             break;
          case ArgumentType.INT32:
@@ -822,7 +855,7 @@ public class Message
             ofs[1] += 2;
             break;
          case ArgumentType.UINT16:
-            rv = new UInt16((int) demarshallint(buf, ofs[1], 2));
+            rv = UInt16.valueOf((int) demarshallint(buf, ofs[1], 2));
             ofs[1] += 2;
             break;
          case ArgumentType.INT64:
@@ -841,7 +874,7 @@ public class Message
                ofs[1] += 4;
                top = demarshallint(buf, ofs[1], 4);
             }
-            rv = new UInt64(top, bottom);
+            rv = UInt64.valueOf(top, bottom);
             ofs[1] += 4;
             break;
          case ArgumentType.DOUBLE:
@@ -866,7 +899,8 @@ public class Message
             byte algn = (byte) getAlignment(sigb[++ofs[0]]);
             ofs[1] = align(ofs[1], sigb[ofs[0]]);
             int length = (int) (size / algn);
-            if (length > DBusConnection.MAX_ARRAY_LENGTH)
+            // the length comes from the sender, so check it before allocating anything
+            if (length > DBusConnection.MAX_ARRAY_LENGTH || ofs[1]+size > buf.length)
                throw new MarshallingException(_("Arrays must not exceed ")+DBusConnection.MAX_ARRAY_LENGTH);
             // optimise primatives
             switch (sigb[ofs[0]]) {
@@ -921,12 +955,20 @@ public class Message
                   }
                   int ofssave = ofs[0];
                   long end = ofs[1]+size;
-                  Vector<Object[]> entries = new Vector<Object[]>();
+                  // entries are 8-aligned, so there cannot be more than size/8,
+                  // and size has been checked against the length of the buffer
+                  Object[][] entries = new Object[(int) (size / 8) + 1][];
+                  int n = 0;
                   while (ofs[1] < end) {
                      ofs[0] = ofssave;
-                     entries.add((Object[]) extractone(sigb, buf, ofs, true));
+                     entries[n++] = (Object[]) extractone(sigb, buf, ofs, true);
+                  }
+                  if (n != entries.length) {
+                     Object[][] tmp = new Object[n][];
+                     System.arraycopy(entries, 0, tmp, 0, n);
+                     entries = tmp;
                   }
-                  rv = new DBusMap<Object, Object>(entries.toArray(new Object[0][]));
+                  rv = new DBusMap<Object, Object>(entries);
                   break;
                default:
                   if (0 == size) {
@@ -969,11 +1011,19 @@ public class Message
             rv = decontents;
             break;
          case ArgumentType.VARIANT:
-            int[] newofs = new int[] { 0, ofs[1] };
-            String sig = (String) extract(ArgumentType.SIGNATURE_STRING, buf, newofs)[0];
-            newofs[0] = 0;
-            rv = new Variant<Object>(extract(sig, buf, newofs)[0] , sig);
-            ofs[1] = newofs[1];
+            length = (buf[ofs[1]++] & 0xFF);
+            String sig = new String(buf, ofs[1], length);
+            ofs[1] += length + 1;
+            byte[] vsigb = TypeRegistry.getSignatureBytes(sig);
+            if (vsigb.length > 1 && ArgumentType.ARRAY == vsigb[0]) {
+               // arrays are left in the buffer until they are used
+               rv = new Variant<Object>(this, sig, buf, ofs[1]);
+               ofs[1] = skipArray(vsigb[1], buf, ofs[1]);
+            } else {
+               int[] newofs = new int[] { 0, ofs[1] };
+               rv = new Variant<Object>(extractone(vsigb, buf, newofs, false), sig);
+               ofs[1] = newofs[1];
+            }
             break;
          case ArgumentType.STRING:
             length = (int) demarshallint(buf, ofs[1], 4);
@@ -1006,6 +1056,22 @@ public class Message
          Debug.print(Debug.VERBOSE, "Extracted: "+rv+" (now at "+ofs[1]+")");
       return rv;
    }
+   /**
+    * Find the end of an array without demarshalling it.
+    * @param type The type code of the array elements.
+    * @param buf The buffer containing the array.
+    * @param ofs The offset of the array in the buffer.
+    * @return The offset after the end of the array.
+    */
+   int skipArray(byte type, byte[] buf, int ofs) throws DBusException
+   {
+      ofs = align(ofs, ArgumentType.ARRAY);
+      long size = demarshallint(buf, ofs, 4);
+      ofs = align(ofs+4, type);
+      if (size / getAlignment(type) > DBusConnection.MAX_ARRAY_LENGTH || ofs+size > buf.length)
+         throw new MarshallingException(_("Arrays must not exceed ")+DBusConnection.MAX_ARRAY_LENGTH);
+      return (int) (ofs+size);
+   }
    /** 
     * Demarshall values from a buffer.
     * @param sig The D-Bus signature(s) of the value(s).
@@ -1103,6 +1169,41 @@ public class Message
       }
       return args; 
    }
+   /**
+    * Demarshall the body straight into the given Java types, rather than
+    * building the values returned by getParameters() and converting them.
+    * If the parameters have already been read they are converted instead.
+    * @param tcs The converters for each parameter.
+    * @return The converted parameters, which are also kept as the parameters of this message.
+    */
+   Object[] getParameters(TypeConverter[] tcs, AbstractConnection conn) throws Exception
+   {
+      if (null == args && null != body) {
+         String sig = (String) headers.get(HeaderField.SIGNATURE);
+         if (null == sig || 0 == body.length) {
+            args = new Object[0];
+            return args;
+         }
+         if (Debug.debug) Debug.print(Debug.VERBOSE, "extract("+sig+",#"+body.length+") into "+Arrays.toString(tcs));
+         byte[] sigb = sig.getBytes();
+         Vector<Object> rv = new Vector<Object>();
+         for (int[] ofs = new int[] { 0, 0 }; ofs[0] < sigb.length; ofs[0]++) {
+            if (rv.size() >= tcs.length)
+               throw new DBusException(_("Error deserializing message: number of parameters didn't match receiving signature"));
+            rv.add(tcs[rv.size()].decode(this, sigb, body, ofs, false, conn));
+         }
+         args = rv.toArray();
+         return args;
+      }
+      Object[] ps = getParameters();
+      if (null == ps) return null;
+      if (ps.length > tcs.length)
+         throw new DBusException(_("Error deserializing message: number of parameters didn't match receiving signature"));
+      for (int i = 0; i < ps.length; i++)
+         if (null != ps[i])
+            ps[i] = tcs[i].convert(ps[i], conn);
+      return ps;
+   }
    protected void setArgs(Object[] args) { this.args = args; }
    /**
     * Warning, do not use this method unless you really know what you are doing.
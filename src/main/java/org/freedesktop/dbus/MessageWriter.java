@@ -13,6 +13,8 @@ package org.freedesktop.dbus;
 import java.io.BufferedOutputStream;
 import java.io.OutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import cx.ath.matthew.debug.Debug;
 import cx.ath.matthew.unix.USOutputStream;
@@ -20,8 +22,11 @@ import cx.ath.matthew.utils.Hexdump;
 
 public class MessageWriter
 {
+   /** The most buffers written to a Unix socket at once, as sendmsg fails with more than IOV_MAX */
+   static final int MAX_IOV = 1024;
    private OutputStream out;
 	private boolean isunix;
+   private List<byte[]> pending = new ArrayList<byte[]>();
    public MessageWriter(OutputStream out)
    {
 		this.out = out;
@@ -35,13 +40,27 @@ public class MessageWriter
 			this.out = new BufferedOutputStream(this.out);
    }
    public void writeMessage(Message m) throws IOException
+   {
+      writeMessage(m, true);
+   }
+   /**
+    * Write a message, optionally leaving it buffered so that several
+    * messages can be sent in one write.
+    * @param m The message.
+    * @param flush If false the message may not be sent until a later message is written with flush set, or flush() is called.
+    */
+   public void writeMessage(Message m, boolean flush) throws IOException
    {
       if (Debug.debug) {
          Debug.print(Debug.INFO, "<= "+m);
       }
-      if (null == m) return;
+      if (null == m) {
+         if (flush) flush();
+         return;
+      }
       if (null == m.getWireData()) {
          if (Debug.debug) Debug.print(Debug.WARN, "Message "+m+" wire-data was null!");
+         if (flush) flush();
          return;
       }
       if (isunix) {
@@ -50,7 +69,14 @@ public class MessageWriter
             for (byte[] buf: m.getWireData()) 
                Debug.print(Debug.VERBOSE, "("+buf+"):"+ (null==buf? "": Hexdump.format(buf)));
          }
-         ((USOutputStream) out).write(m.getWireData());
+         if (flush && pending.isEmpty())
+            writeUnix(m.getWireData());
+         else {
+            for (byte[] buf: m.getWireData())
+               if (null != buf) pending.add(buf);
+            if (flush) flush();
+         }
+         return;
       } else
          for (byte[] buf: m.getWireData()) {
             if (Debug.debug)
@@ -58,7 +84,35 @@ public class MessageWriter
             if (null == buf) break;
             out.write(buf);
          }
-      out.flush();
+      if (flush) out.flush();
+   }
+   /**
+    * Send any messages which have been buffered.
+    */
+   public void flush() throws IOException
+   {
+      if (isunix) {
+         if (pending.isEmpty()) return;
+         byte[][] bufs = pending.toArray(new byte[pending.size()][]);
+         pending.clear();
+         writeUnix(bufs);
+      } else
+         out.flush();
+   }
+   /**
+    * Write buffers to the Unix socket, no more than MAX_IOV at a time.
+    */
+   private void writeUnix(byte[][] bufs) throws IOException
+   {
+      if (bufs.length <= MAX_IOV) {
+         ((USOutputStream) out).write(bufs);
+         return;
+      }
+      for (int i = 0; i < bufs.length && null != bufs[i]; i += MAX_IOV) {
+         byte[][] chunk = new byte[Math.min(MAX_IOV, bufs.length - i)][];
+         System.arraycopy(bufs, i, chunk, 0, chunk.length);
+         ((USOutputStream) out).write(chunk);
+      }
    }
    public void close() throws IOException
    {
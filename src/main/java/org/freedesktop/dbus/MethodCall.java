@@ -12,7 +12,11 @@ package org.freedesktop.dbus;
 
 import static org.freedesktop.dbus.Gettext._;
 
+import java.util.Queue;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.LockSupport;
 import org.freedesktop.dbus.exceptions.DBusException;
 import org.freedesktop.dbus.exceptions.MessageFormatException;
 import cx.ath.matthew.debug.Debug;
@@ -28,7 +32,30 @@ public class MethodCall extends Message
    public MethodCall(String source, String dest, String path, String iface, String member, byte flags, String sig, Object... args) throws DBusException
    {
       super(Message.Endian.BIG, Message.MessageType.METHOD_CALL, flags);
-
+      appendHeaders(source, dest, path, iface, member, sig);
+      if (null != sig) {
+         setArgs(args);
+         append(sig, args);
+      }
+      close();
+   }
+   /**
+    * Create a call to a remote object whose arguments are appended one at a
+    * time afterwards, followed by close(). Used by generated stubs.
+    * @param sig The signature of all the arguments which will be appended.
+    */
+   MethodCall(RemoteObject ro, String member, byte flags, String sig) throws DBusException
+   {
+      super(Message.Endian.BIG, Message.MessageType.METHOD_CALL, flags);
+      appendHeaders(null, ro.busname, ro.objectpath, ro.ifname, member, sig);
+   }
+   /** The body length, filled in by close() */
+   private byte[] blen;
+   private long bodystart;
+   /** The descriptor of the method, while a stub is appending the arguments */
+   CallDescriptor descriptor;
+   private void appendHeaders(String source, String dest, String path, String iface, String member, String sig) throws DBusException
+   {
       if (null == member || null == path)
          throw new MessageFormatException(_("Must specify destination, path and function name to MethodCalls."));
       headers.put(Message.HeaderField.PATH,path);
@@ -59,21 +86,24 @@ public class MethodCall extends Message
          if (Debug.debug) Debug.print(Debug.DEBUG, "Appending arguments with signature: "+sig);
          hargs.add(new Object[] { Message.HeaderField.SIGNATURE, new Object[] { ArgumentType.SIGNATURE_STRING, sig } });
          headers.put(Message.HeaderField.SIGNATURE,sig);
-         setArgs(args);
       }
 
-      byte[] blen = new byte[4];
+      blen = new byte[4];
       appendBytes(blen);
       append("ua(yv)", serial, hargs.toArray());
       pad((byte)8);
-
-      long c = bytecounter;
-      if (null != sig) append(sig, args);
-      if (Debug.debug) Debug.print(Debug.DEBUG, "Appended body, type: "+sig+" start: "+c+" end: "+bytecounter+" size: "+(bytecounter-c));
-      marshallint(bytecounter-c, blen, 0, 4);
+      bodystart = bytecounter;
+   }
+   /**
+    * Fill in the length of the body once all the arguments have been appended.
+    */
+   void close()
+   {
+      if (Debug.debug) Debug.print(Debug.DEBUG, "Appended body, type: "+getSig()+" start: "+bodystart+" end: "+bytecounter+" size: "+(bytecounter-bodystart));
+      marshallint(bytecounter-bodystart, blen, 0, 4);
       if (Debug.debug) Debug.print("marshalled size ("+blen+"): "+Hexdump.format(blen));
    }
-   private static long REPLY_WAIT_TIMEOUT = 20000;
+   private static volatile long REPLY_WAIT_TIMEOUT = 20000;
    /**
     * Set the default timeout for method calls.
     * Default is 20s.
@@ -83,44 +113,102 @@ public class MethodCall extends Message
    {
       REPLY_WAIT_TIMEOUT = timeout;
    }
-   Message reply = null;
-   public synchronized boolean hasReply()
+   static long getDefaultTimeout()
+   {
+      return REPLY_WAIT_TIMEOUT;
+   }
+   private static volatile int REPLY_SPIN_COUNT = 0;
+   /**
+    * Set how many times to check for a reply before a waiting thread is
+    * parked. Spinning avoids the cost of parking and waking the thread
+    * when replies are expected within a few microseconds, but uses CPU
+    * while it waits. Default is 0.
+    * @param spins The number of checks.
+    */
+   public static void setSpinCount(int spins)
+   {
+      REPLY_SPIN_COUNT = spins;
+   }
+   volatile Message reply = null;
+   /** The threads blocked on the reply. */
+   private Queue<Thread> waiters = new ConcurrentLinkedQueue<Thread>();
+   /** The calls this is shared with identical calls in, and its key there. */
+   private ConcurrentMap<Object, MethodCall> flights;
+   private Object flightkey;
+   /**
+    * Share this call in flights until it has a reply.
+    * @return The identical call to use instead, or null if this call should be sent.
+    */
+   MethodCall share(ConcurrentMap<Object, MethodCall> flights, Object key)
+   {
+      this.flights = flights;
+      this.flightkey = key;
+      return flights.putIfAbsent(key, this);
+   }
+   /**
+    * Stop sharing this call, so the next identical call is sent again.
+    */
+   void unshare()
+   {
+      if (null != flights) flights.remove(flightkey, this);
+   }
+   public boolean hasReply()
    {
       return null != reply;
    }
    /**
     * Block (if neccessary) for a reply.
+    * If the thread is interrupted this returns straight away, with the
+    * interrupt status still set.
     * @return The reply to this MethodCall, or null if a timeout happens.
-    * @param timeout The length of time to block before timing out (ms).
+    * @param timeout The length of time to block before timing out (ms),
+    * or 0 to wait until the reply comes.
     */
-   public synchronized Message getReply(long timeout)
+   public Message getReply(long timeout)
    {
-      if (Debug.debug) Debug.print(Debug.VERBOSE, "Blocking on "+this);
       if (null != reply) return reply;
+      if (Debug.debug) Debug.print(Debug.VERBOSE, "Blocking on "+this);
+      for (int i = REPLY_SPIN_COUNT; i > 0; i--)
+         if (null != reply) return reply;
+      if (timeout < 0) return reply;
+      // too long to count in nanoseconds is the same as forever
+      if (timeout > Long.MAX_VALUE / 1000000L) timeout = 0;
+      long deadline = System.nanoTime() + timeout * 1000000L;
+      Thread t = Thread.currentThread();
+      waiters.add(t);
       try {
-         wait(timeout);
-         return reply;
-      } catch (InterruptedException Ie) { return reply; }
+         // the reply is checked after adding ourselves, so its unpark cannot be missed
+         while (null == reply && !t.isInterrupted()) {
+            if (0 == timeout)
+               LockSupport.park();
+            else {
+               long left = deadline - System.nanoTime();
+               if (left <= 0) break;
+               LockSupport.parkNanos(left);
+            }
+         }
+      } finally {
+         waiters.remove(t);
+      }
+      return reply;
    }
    /**
     * Block (if neccessary) for a reply.
     * Default timeout is 20s, or can be configured with setDefaultTimeout()
     * @return The reply to this MethodCall, or null if a timeout happens.
     */
-   public synchronized Message getReply()
+   public Message getReply()
    {
-      if (Debug.debug) Debug.print(Debug.VERBOSE, "Blocking on "+this);
-      if (null != reply) return reply;
-      try {
-         wait(REPLY_WAIT_TIMEOUT);
-         return reply;
-      } catch (InterruptedException Ie) { return reply; }
+      return getReply(REPLY_WAIT_TIMEOUT);
    }
-   protected synchronized void setReply(Message reply)
+   protected void setReply(Message reply)
    {
       if (Debug.debug) Debug.print(Debug.VERBOSE, "Setting reply to "+this+" to "+reply);
+      unshare();
       this.reply = reply;
-      notifyAll();
+      Thread t;
+      while (null != (t = waiters.poll()))
+         LockSupport.unpark(t);
    }
 
 }
@@ -0,0 +1,281 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import static org.freedesktop.dbus.Gettext._;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.DBusExecutionException;
+
+import cx.ath.matthew.debug.Debug;
+
+/**
+ * Converts the parameters and return value of one method to and from
+ * their D-Bus representation.
+ * <p>
+ * The signatures and the converters for each parameter are worked out once
+ * per method, when it is exported or first called, instead of walking the
+ * generic types on every message. Methods using DBusSerializable or Tuple
+ * parameters fall back to the general code in Marshalling.
+ * </p><p>
+ * The codec also holds the method and, for methods returning a Tuple, the
+ * Tuple constructor, with access checks suppressed so that invoking them
+ * only costs the reflective call itself.
+ * </p>
+ */
+class MethodCodec
+{
+   private static final Map<Method, MethodCodec> codecs = new ConcurrentHashMap<Method, MethodCodec>();
+
+   /**
+    * Get the codec for a method.
+    */
+   static MethodCodec get(Method m)
+   {
+      MethodCodec mc = codecs.get(m);
+      if (null == mc) {
+         if (Debug.debug) Debug.print(Debug.VERBOSE, "Creating codec for "+m);
+         mc = new MethodCodec(m);
+         codecs.put(m, mc);
+      }
+      return mc;
+   }
+   /**
+    * Turn off access checks on a method or constructor which will be called
+    * many times. This is not required, so it is ignored if a security manager
+    * does not allow it.
+    */
+   static <T extends AccessibleObject> T bind(T o)
+   {
+      try {
+         o.setAccessible(true);
+      } catch (SecurityException Se) {
+         if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, Se);
+      }
+      return o;
+   }
+
+   private Method method;
+   private Constructor<? extends Object> tuple;
+   private Type[] ptypes;
+   private Type[] rtypes;
+   private String psig;
+   private String rsig;
+   private boolean[] variant;
+   private TypeConverter[] pconv;
+   private TypeConverter[] rconv;
+   private byte[][] psigs;
+
+   private MethodCodec(Method m)
+   {
+      method = bind(m);
+      if (Tuple.class.isAssignableFrom(m.getReturnType())
+            && 0 < m.getReturnType().getConstructors().length)
+         tuple = bind(m.getReturnType().getConstructors()[0]);
+      ptypes = m.getGenericParameterTypes();
+      Type rtype = m.getGenericReturnType();
+      rtypes = new Type[] { rtype };
+      try {
+         if (0 < ptypes.length) psig = Marshalling.getDBusType(ptypes);
+      } catch (DBusException DBe) {
+         if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
+      }
+      try {
+         if (!Void.TYPE.equals(rtype)) rsig = Marshalling.getDBusType(rtypes);
+      } catch (DBusException DBe) {
+         if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
+      }
+      variant = new boolean[ptypes.length];
+      for (int i = 0; i < ptypes.length; i++)
+         variant[i] = ptypes[i] instanceof TypeVariable;
+      pconv = converters(ptypes);
+      rconv = converters(rtypes);
+      if (null != pconv && null != psig) try {
+         psigs = new byte[ptypes.length][];
+         for (int i = 0; i < ptypes.length; i++) {
+            String[] s = Marshalling.getDBusType(ptypes[i]);
+            if (1 != s.length) {
+               psigs = null;
+               break;
+            }
+            psigs[i] = s[0].getBytes();
+         }
+      } catch (DBusException DBe) {
+         if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
+         psigs = null;
+      }
+   }
+   /* returns null if the types need the general code in Marshalling */
+   @SuppressWarnings("unchecked")
+   private static TypeConverter[] converters(Type[] types)
+   {
+      if (types.length == 1 && types[0] instanceof ParameterizedType
+            && Tuple.class.isAssignableFrom((Class<? extends Object>) ((ParameterizedType) types[0]).getRawType()))
+         types = ((ParameterizedType) types[0]).getActualTypeArguments();
+      TypeConverter[] tcs = new TypeConverter[types.length];
+      for (int i = 0; i < types.length; i++) {
+         Type t = types[i];
+         if (t instanceof ParameterizedType) t = ((ParameterizedType) t).getRawType();
+         if (t instanceof Class && (DBusSerializable.class.isAssignableFrom((Class<? extends Object>) t)
+                  || Tuple.class.isAssignableFrom((Class<? extends Object>) t)))
+            return null;
+         tcs[i] = TypeConverter.get(types[i]);
+      }
+      return tcs;
+   }
+
+   /**
+    * The signature of the method parameters, or null if it takes none.
+    */
+   String getSignature() throws DBusException
+   {
+      if (0 == ptypes.length) return null;
+      if (null == psig) return Marshalling.getDBusType(ptypes);
+      return psig;
+   }
+   /**
+    * The signature of each parameter, or null if the parameters need the
+    * general code in Marshalling.
+    */
+   byte[][] getParameterSignatures()
+   {
+      return psigs;
+   }
+   /**
+    * The signature of the return value.
+    */
+   String getReturnSignature() throws DBusException
+   {
+      if (null == rsig) return Marshalling.getDBusType(rtypes);
+      return rsig;
+   }
+   /**
+    * Invoke the method.
+    * @throws Throwable Whatever the method itself threw.
+    */
+   Object invoke(Object target, Object[] args) throws Throwable
+   {
+      try {
+         return method.invoke(target, args);
+      } catch (InvocationTargetException ITe) {
+         if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, ITe.getCause());
+         throw ITe.getCause();
+      }
+   }
+   /**
+    * Create the Tuple returned by the method from its values.
+    */
+   Object newTuple(Object[] values) throws DBusException
+   {
+      if (null == tuple)
+         throw new DBusExecutionException(_("Wrong return type (not expecting Tuple)"));
+      try {
+         return tuple.newInstance(values);
+      } catch (Exception e) {
+         if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
+         throw new DBusException(e.getMessage());
+      }
+   }
+   /**
+    * Convert method arguments for sending on the bus.
+    */
+   Object[] serialize(Object[] args, AbstractConnection conn) throws DBusException
+   {
+      if (null == args) return null;
+      if (args.length > variant.length) return Marshalling.convertParameters(args, ptypes, conn);
+      for (int i = 0; i < args.length; i++) {
+         Object a = args[i];
+         if (null == a) continue;
+         if (a instanceof DBusSerializable || a instanceof Tuple)
+            return Marshalling.convertParameters(args, ptypes, conn);
+         args[i] = serialize(i, a, conn);
+      }
+      return args;
+   }
+   /**
+    * Convert one method argument for sending on the bus. The parameter
+    * must not be DBusSerializable or a Tuple.
+    */
+   Object serialize(int i, Object a, AbstractConnection conn) throws DBusException
+   {
+      if (variant[i]) {
+         if (!(a instanceof Variant)) return new Variant<Object>(a);
+      } else if (a instanceof DBusInterface)
+         return conn.getExportedObject((DBusInterface) a);
+      return a;
+   }
+   /**
+    * Convert a method's return value for sending on the bus.
+    */
+   Object[] serializeReturn(Object result, AbstractConnection conn) throws DBusException
+   {
+      Object[] rv = new Object[] { result };
+      if (null == result) return rv;
+      if (result instanceof DBusSerializable || result instanceof Tuple)
+         return Marshalling.convertParameters(rv, rtypes, conn);
+      if (rtypes[0] instanceof TypeVariable) {
+         if (!(result instanceof Variant)) rv[0] = new Variant<Object>(result);
+      } else if (result instanceof DBusInterface)
+         rv[0] = conn.getExportedObject((DBusInterface) result);
+      return rv;
+   }
+   /**
+    * Convert method arguments received from the bus.
+    */
+   Object[] deserialize(Object[] parameters, AbstractConnection conn) throws Exception
+   {
+      return convert(parameters, ptypes, pconv, conn);
+   }
+   /**
+    * Convert a return value received from the bus.
+    */
+   Object[] deserializeReturn(Object[] parameters, AbstractConnection conn) throws Exception
+   {
+      return convert(parameters, rtypes, rconv, conn);
+   }
+   /**
+    * Read the method arguments from a message received from the bus.
+    */
+   Object[] deserialize(Message m, AbstractConnection conn) throws Exception
+   {
+      if (null == pconv) return Marshalling.deSerializeParameters(m.getParameters(), ptypes, conn);
+      return m.getParameters(pconv, conn);
+   }
+   /**
+    * Read the return value from a reply received from the bus.
+    */
+   Object[] deserializeReturn(Message m, AbstractConnection conn) throws Exception
+   {
+      if (null == rconv) return Marshalling.deSerializeParameters(m.getParameters(), rtypes, conn);
+      return m.getParameters(rconv, conn);
+   }
+   private static Object[] convert(Object[] parameters, Type[] types, TypeConverter[] tcs, AbstractConnection conn) throws Exception
+   {
+      if (null == parameters) return null;
+      if (null == tcs) return Marshalling.deSerializeParameters(parameters, types, conn);
+      if (parameters.length > tcs.length)
+         throw new DBusException(_("Error deserializing message: number of parameters didn't match receiving signature"));
+      for (int i = 0; i < parameters.length; i++)
+         if (null != parameters[i])
+            parameters[i] = tcs[i].convert(parameters[i], conn);
+      return parameters;
+   }
+}
@@ -0,0 +1,194 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import static org.freedesktop.dbus.Gettext._;
+
+import java.text.MessageFormat;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.freedesktop.DBus;
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.DBusExecutionException;
+
+import cx.ath.matthew.debug.Debug;
+
+/**
+ * Tracks the owners of well-known bus names.
+ * <p>
+ * The owner of a name is asked for from the bus the first time it is
+ * needed, and after that kept up to date by NameOwnerChanged signals, so
+ * it can be looked up without a round trip. Only the names which have been
+ * looked up or warmed up are tracked. All the NameOwnerChanged handlers
+ * added to the registry share one match rule.
+ * </p><p>
+ * Signals are handled on the worker threads and may be handled out of
+ * order, so each owner is kept with the serial number of the signal which
+ * set it, and older signals are ignored.
+ * </p>
+ * Each bus connection has one registry, from {@link DBusConnection#getNameOwnerRegistry()}.
+ */
+public class NameOwnerRegistry
+{
+   /** The number of names whose owners are kept. */
+   public static final int MAX_NAMES = 4096;
+   /** Stands for a name without an owner, which the map cannot hold. */
+   private static final String NO_OWNER = "";
+   /** Held for a name whose owner is being asked for. */
+   private static final _owner UNKNOWN = new _owner(null, 0);
+
+   /**
+    * The owner of a name and the serial number of the signal which
+    * set it, or 0 if it was asked for.
+    */
+   private static class _owner
+   {
+      final String owner;
+      final long serial;
+      public _owner(String owner, long serial)
+      {
+         this.owner = owner;
+         this.serial = serial;
+      }
+   }
+
+   private class _ownerhandler implements DBusSigHandler<DBus.NameOwnerChanged>
+   {
+      public void handle(DBus.NameOwnerChanged s)
+      {
+         if (Debug.debug) Debug.print(Debug.VERBOSE, "Owner of "+s.name+" changed from "+s.old_owner+" to "+s.new_owner);
+         if (!s.name.startsWith(":"))
+            update(s.name, new _owner(null == s.new_owner ? NO_OWNER : s.new_owner, s.getSerial()));
+         for (DBusSigHandler<DBus.NameOwnerChanged> h: handlers)
+            try {
+               h.handle(s);
+            } catch (RuntimeException Re) {
+               if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, Re);
+            }
+      }
+   }
+   private class _warmup implements CallbackHandler<String>
+   {
+      private String name;
+      public _warmup(String name)
+      {
+         this.name = name;
+      }
+      public void handle(String owner)
+      {
+         owners.replace(name, UNKNOWN, new _owner(owner, 0));
+      }
+      public void handleError(DBusExecutionException DBEe)
+      {
+         if (DBEe instanceof DBus.Error.NameHasNoOwner)
+            owners.replace(name, UNKNOWN, new _owner(NO_OWNER, 0));
+         else {
+            if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBEe);
+            owners.remove(name, UNKNOWN);
+         }
+      }
+   }
+
+   private DBusConnection conn;
+   private DBus dbus;
+   private ConcurrentHashMap<String, _owner> owners = new ConcurrentHashMap<String, _owner>();
+   private List<DBusSigHandler<DBus.NameOwnerChanged>> handlers = new CopyOnWriteArrayList<DBusSigHandler<DBus.NameOwnerChanged>>();
+   private boolean watching = false;
+   NameOwnerRegistry(DBusConnection conn, DBus dbus)
+   {
+      this.conn = conn;
+      this.dbus = dbus;
+   }
+   /**
+    * Get the unique name of the owner of a bus name.
+    * Unique names are returned as they are.
+    * @throws DBus.Error.NameHasNoOwner If the name has no owner.
+    * @throws DBusException If the owners of names cannot be tracked.
+    */
+   public String getNameOwner(String name) throws DBusException
+   {
+      if (name.startsWith(":")) return name;
+      _owner o = owners.get(name);
+      String owner = null == o ? null : o.owner;
+      if (null == owner) {
+         // listen and start tracking before asking, so no change can be missed
+         watch();
+         if (null == o && owners.size() < MAX_NAMES)
+            owners.putIfAbsent(name, UNKNOWN);
+         try {
+            owner = dbus.GetNameOwner(name);
+         } catch (DBus.Error.NameHasNoOwner NHNOe) {
+            owner = NO_OWNER;
+         }
+         // an owner from a signal which arrived while asking is newer
+         if (!owners.replace(name, UNKNOWN, new _owner(owner, 0))) {
+            o = owners.get(name);
+            if (null != o && null != o.owner) owner = o.owner;
+         }
+      }
+      if (NO_OWNER.equals(owner))
+         throw new DBus.Error.NameHasNoOwner(MessageFormat.format(_("Name {0} has no owner"), new Object[] { name }));
+      return owner;
+   }
+   /**
+    * Ask for the owners of some names without waiting for the replies,
+    * so that they are known by the time they are needed.
+    * @throws DBusException If the owners of names cannot be tracked.
+    */
+   public void warmUp(String... names) throws DBusException
+   {
+      watch();
+      for (String name: names)
+         if (!name.startsWith(":") && owners.size() < MAX_NAMES
+               && null == owners.putIfAbsent(name, UNKNOWN))
+            conn.callWithCallback(dbus, "GetNameOwner", new _warmup(name), name);
+   }
+   /**
+    * Stop tracking the owner of a name.
+    */
+   public void forget(String name)
+   {
+      owners.remove(name);
+   }
+   /**
+    * Add a handler for all NameOwnerChanged signals. This does not add
+    * a match rule if one has already been added for the registry.
+    * @throws DBusException If the signals could not be listened for.
+    */
+   public void addHandler(DBusSigHandler<DBus.NameOwnerChanged> h) throws DBusException
+   {
+      watch();
+      handlers.add(h);
+   }
+   public void removeHandler(DBusSigHandler<DBus.NameOwnerChanged> h)
+   {
+      handlers.remove(h);
+   }
+   /**
+    * Set the owner of a name which is tracked, unless it was set by a newer signal.
+    */
+   private void update(String name, _owner owner)
+   {
+      for (;;) {
+         _owner o = owners.get(name);
+         if (null == o || o.serial > owner.serial) return;
+         if (owners.replace(name, o, owner)) return;
+      }
+   }
+   private synchronized void watch() throws DBusException
+   {
+      if (watching) return;
+      conn.addSigHandler(DBus.NameOwnerChanged.class, new _ownerhandler());
+      watching = true;
+   }
+}
@@ -12,152 +12,257 @@ package org.freedesktop.dbus;
 
 import cx.ath.matthew.debug.Debug;
 
-import java.util.regex.Pattern;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Keeps track of the exported objects for introspection data */
-class ObjectTree 
+ * Keeps track of the exported objects and fallbacks by object path, for
+ * calling methods on them and for introspection data.
+ * <p>
+ * There is one node for each element of an exported path, so looking up a
+ * path, its fallback or its children takes time in proportion to the
+ * number of elements in the path rather than the number of exported
+ * objects. Lookups do not lock; changes are made one at a time and nodes
+ * which are no longer needed are removed.
+ * </p><p>
+ * The nodes holding objects are also indexed by the identity of the
+ * object, so the path of an exported object is found without looking
+ * at the others. The index does not keep the objects from being
+ * garbage collected.
+ * </p>
+ */
+class ObjectTree
 {
-   class TreeNode
+   static class TreeNode
    {
-      String name;
-      ExportedObject object;
-      String data;
-      TreeNode right;
-      TreeNode down;
-      public TreeNode(String name)
+      final String name;
+      final TreeNode parent;
+      volatile Map<String, TreeNode> children;
+      volatile ExportedObject object;
+      volatile String data;
+      volatile ExportedObject fallback;
+      /** The identity hash code of the object, which may since have been collected */
+      int objecthash;
+      public TreeNode(String name, TreeNode parent)
       {
          this.name = name;
+         this.parent = parent;
       }
-      public TreeNode(String name, ExportedObject object, String data)
+      boolean isEmpty()
       {
-         this.name = name;
-         this.object = object;
-         this.data = data;
+         Map<String, TreeNode> c = children;
+         return null == object && null == fallback && (null == c || c.isEmpty());
       }
    }
-   private TreeNode root;
-   public ObjectTree()
-   {
-      root = new TreeNode("");
-   }
-   public static final Pattern slashpattern = Pattern.compile("/");
+   private final TreeNode root = new TreeNode("", null);
+   /** The nodes holding objects, by the identity hash codes of the objects */
+   private final Map<Integer, TreeNode[]> byobject = new ConcurrentHashMap<Integer, TreeNode[]>();
 
-   private TreeNode recursiveFind(TreeNode current, String path)
+   /**
+    * Find the node for a path, optionally creating it and its parents.
+    * @return The node, or null if it does not exist and create is false.
+    */
+   private TreeNode find(String path, boolean create)
    {
-      if ("/".equals(path)) return current;
-      String[] elements = path.split("/", 2);
-      // this is us or a parent node
-      if (path.startsWith(current.name)) {
-         // this is us
-         if (path.equals(current.name)) {
-            return current;
-         }
-         // recurse down
-         else {
-            if (current.down == null) 
-               return null;
-            else return recursiveFind(current.down, elements[1]);
+      TreeNode t = root;
+      int len = path.length();
+      int start = 1;
+      while (null != t && start < len) {
+         int end = path.indexOf('/', start);
+         if (-1 == end) end = len;
+         String name = path.substring(start, end);
+         Map<String, TreeNode> c = t.children;
+         TreeNode next = null == c ? null : c.get(name);
+         if (null == next && create) {
+            if (null == c) {
+               // writers hold the lock, so only one may create the map
+               c = new ConcurrentHashMap<String, TreeNode>(4, 0.75f, 1);
+               t.children = c;
+            }
+            next = new TreeNode(name, t);
+            c.put(name, next);
          }
-      } 
-      else if (current.right == null) {
-         return null;
+         t = next;
+         start = end + 1;
       }
-      else if (0 > current.right.name.compareTo(elements[0])) {
-         return null;
-      }
-      // recurse right
-      else {
-         return recursiveFind(current.right, path);
+      return t;
+   }
+   /** The path of a node. */
+   private static String path(TreeNode t)
+   {
+      if (null == t.parent) return "/";
+      StringBuilder sb = new StringBuilder();
+      for (; null != t.parent; t = t.parent) {
+         sb.insert(0, t.name);
+         sb.insert(0, '/');
       }
+      return sb.toString();
    }
-   private TreeNode recursiveAdd(TreeNode current, String path, ExportedObject object, String data)
+   /** Add or remove a node from the index by object. */
+   private void index(TreeNode t, boolean add)
    {
-      String[] elements = slashpattern.split(path, 2);
-      // this is us or a parent node
-      if (path.startsWith(current.name)) {
-         // this is us
-         if (1 == elements.length || "".equals(elements[1])) {
-            current.object = object;
-            current.data = data;
-         }
-         // recurse down
-         else {
-            if (current.down == null) {
-               String[] el = elements[1].split("/", 2);
-               current.down = new TreeNode(el[0]);
-            }
-            current.down = recursiveAdd(current.down, elements[1], object, data);
+      Integer hash = t.objecthash;
+      TreeNode[] ts = byobject.get(hash);
+      if (add) {
+         TreeNode[] more = new TreeNode[null == ts ? 1 : ts.length + 1];
+         if (null != ts) System.arraycopy(ts, 0, more, 0, ts.length);
+         more[more.length - 1] = t;
+         byobject.put(hash, more);
+      } else if (null != ts) {
+         int i = 0;
+         while (i < ts.length && ts[i] != t) i++;
+         if (i == ts.length) return;
+         if (1 == ts.length) {
+            byobject.remove(hash);
+            return;
          }
-      } 
-      // need to create a new sub-tree on the end
-      else if (current.right == null) {
-         current.right = new TreeNode(elements[0]);
-         current.right = recursiveAdd(current.right, path, object, data);
-      }
-      // need to insert here
-      else if (0 > current.right.name.compareTo(elements[0])) {
-         TreeNode t = new TreeNode(elements[0]);
-         t.right = current.right;
-         current.right = t;
-         current.right = recursiveAdd(current.right, path, object, data);
+         TreeNode[] rest = new TreeNode[ts.length - 1];
+         System.arraycopy(ts, 0, rest, 0, i);
+         System.arraycopy(ts, i + 1, rest, i, rest.length - i);
+         byobject.put(hash, rest);
       }
-      // recurse right
-      else {
-         current.right = recursiveAdd(current.right, path, object, data);
+   }
+   /** Remove nodes which no longer hold anything, from t upwards. */
+   private void prune(TreeNode t)
+   {
+      while (null != t.parent && t.isEmpty()) {
+         t.parent.children.remove(t.name);
+         t = t.parent;
       }
-      return current;
    }
-   public void add(String path, ExportedObject object, String data)
+
+   /**
+    * Add an object at a path.
+    * @return false if there is already an object at this path.
+    */
+   public synchronized boolean add(String path, ExportedObject object, String data)
    {
       if (Debug.debug) Debug.print(Debug.DEBUG, "Adding "+path+" to object tree");
-      root = recursiveAdd(root, path, object, data);
+      TreeNode t = find(path, true);
+      if (null != t.object) return false;
+      t.data = data;
+      t.object = object;
+      t.objecthash = System.identityHashCode(object.object.get());
+      index(t, true);
+      return true;
    }
-   public void remove(String path)
+   public synchronized void remove(String path)
    {
       if (Debug.debug) Debug.print(Debug.DEBUG, "Removing "+path+" from object tree");
-      TreeNode t = recursiveFind(root, path);
+      TreeNode t = find(path, false);
+      if (null == t || null == t.object) return;
+      index(t, false);
       t.object = null;
       t.data = null;
+      prune(t);
+   }
+   public synchronized void addFallback(String path, ExportedObject object)
+   {
+      if (Debug.debug) Debug.print(Debug.DEBUG, "Adding fallback on "+path+" of "+object);
+      find(path, true).fallback = object;
+   }
+   public synchronized void removeFallback(String path)
+   {
+      if (Debug.debug) Debug.print(Debug.DEBUG, "Removing fallback on "+path);
+      TreeNode t = find(path, false);
+      if (null == t) return;
+      t.fallback = null;
+      prune(t);
+   }
+
+   /**
+    * Get the object exported at exactly this path, or null.
+    */
+   public ExportedObject get(String path)
+   {
+      TreeNode t = find(path, false);
+      return null == t ? null : t.object;
+   }
+   /**
+    * Get the fallback with the longest prefix of this path, or null.
+    */
+   public ExportedObject getFallback(String path)
+   {
+      TreeNode t = root;
+      ExportedObject best = t.fallback;
+      int len = path.length();
+      int start = 1;
+      while (start < len) {
+         int end = path.indexOf('/', start);
+         if (-1 == end) end = len;
+         Map<String, TreeNode> c = t.children;
+         if (null == c) break;
+         t = c.get(path.substring(start, end));
+         if (null == t) break;
+         ExportedObject eo = t.fallback;
+         if (null != eo) best = eo;
+         start = end + 1;
+      }
+      if (Debug.debug) Debug.print(Debug.DEBUG, "Found fallback for "+path+" of "+best);
+      return best;
+   }
+   /**
+    * Get the path this object is exported at, or null.
+    */
+   public String find(DBusInterface object)
+   {
+      TreeNode[] ts = byobject.get(System.identityHashCode(object));
+      if (null == ts) return null;
+      for (TreeNode t: ts) {
+         ExportedObject eo = t.object;
+         if (null != eo && object == eo.object.get())
+            return path(t);
+      }
+      return null;
    }
 
    public String Introspect(String path)
    {
-      TreeNode t = recursiveFind(root, path);
+      TreeNode t = find(path, false);
       if (null == t) return null;
       StringBuilder sb = new StringBuilder();
       sb.append("<node name=\"");
       sb.append(path);
       sb.append("\">\n");
-      if (null != t.data) sb.append(t.data);
-      t = t.down;
-      while (null != t) {
-         sb.append("<node name=\"");
-         sb.append(t.name);
-         sb.append("\"/>\n");
-         t = t.right;
+      String data = t.data;
+      if (null != data) sb.append(data);
+      Map<String, TreeNode> c = t.children;
+      if (null != c) {
+         String[] names = c.keySet().toArray(new String[0]);
+         Arrays.sort(names);
+         for (String name: names) {
+            sb.append("<node name=\"");
+            sb.append(name);
+            sb.append("\"/>\n");
+         }
       }
       sb.append("</node>");
       return sb.toString();
    }
 
-   private String recursivePrint(TreeNode current)
+   private void recursivePrint(TreeNode current, StringBuilder sb)
    {
-      String s = "";
-      if (null != current) {
-         s += current.name;
-         if (null != current.object)
-            s += "*";
-         if (null != current.down) 
-            s += "/{"+recursivePrint(current.down)+"}";
-         if (null != current.right)
-            s += ", "+recursivePrint(current.right);
+      sb.append(current.name);
+      if (null != current.object)
+         sb.append('*');
+      Map<String, TreeNode> c = current.children;
+      if (null != c && !c.isEmpty()) {
+         sb.append("/{");
+         boolean first = true;
+         for (TreeNode t: c.values()) {
+            if (!first) sb.append(", ");
+            first = false;
+            recursivePrint(t, sb);
+         }
+         sb.append('}');
       }
-      return s;
    }
-      
+
    public String toString()
    {
-      return recursivePrint(root);
+      StringBuilder sb = new StringBuilder();
+      recursivePrint(root, sb);
+      return sb.toString();
    }
 }
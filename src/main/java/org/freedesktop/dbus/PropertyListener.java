@@ -0,0 +1,26 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+/**
+ * Notified of changes to the properties of a remote object mirrored by a PropertyMirror.
+ */
+public interface PropertyListener
+{
+   /**
+    * Called when a property changes.
+    * @param interface_name The interface the property is associated with.
+    * @param property_name The name of the property.
+    * @param value The new value, or null if the property was invalidated
+    * and will be fetched again when it is next read.
+    */
+   public void propertyChanged(String interface_name, String property_name, Object value);
+}
@@ -0,0 +1,253 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import static org.freedesktop.dbus.Gettext._;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.freedesktop.DBus;
+import org.freedesktop.dbus.exceptions.DBusException;
+
+import cx.ath.matthew.debug.Debug;
+
+/**
+ * Keeps a local copy of the properties of a remote object.
+ * <p>
+ * The properties of each interface are fetched with one GetAll call the
+ * first time one of them is read, and after that are kept up to date by the
+ * PropertiesChanged signals sent by the object. Reads are answered from the
+ * local copy without any round trip. Properties which are invalidated
+ * rather than sent in the signal are fetched again with Get the next time
+ * they are read.
+ * </p><p>
+ * On a bus connection only signals from the current owner of the object's
+ * bus name are used. When the name changes owner the local copy is dropped
+ * and the signals from the new owner are listened for instead.
+ * </p><p>
+ * The copy is only as fresh as the object's signals: properties which change
+ * without a PropertiesChanged signal will not be updated.
+ * </p>
+ */
+public class PropertyMirror
+{
+   private static class _interface
+   {
+      final ConcurrentHashMap<String, Object> values = new ConcurrentHashMap<String, Object>();
+      volatile boolean loaded = false;
+   }
+   private class _changehandler implements DBusSigHandler<DBus.Properties.PropertiesChanged>
+   {
+      public void handle(DBus.Properties.PropertiesChanged s)
+      {
+         if (Debug.debug) Debug.print(Debug.VERBOSE, "Properties of "+s.interface_name+" changed on "+s.getPath());
+         _interface i = getInterface(s.interface_name);
+         if (null != s.changed_properties)
+            for (Map.Entry<String, Variant> e: s.changed_properties.entrySet()) {
+               Object value = e.getValue().getValue();
+               i.values.put(e.getKey(), value);
+               fire(s.interface_name, e.getKey(), value);
+            }
+         if (null != s.invalidated_properties)
+            for (String name: s.invalidated_properties) {
+               i.values.remove(name);
+               fire(s.interface_name, name, null);
+            }
+      }
+   }
+   private class _ownerhandler implements DBusSigHandler<DBus.NameOwnerChanged>
+   {
+      public void handle(DBus.NameOwnerChanged s)
+      {
+         if (!busname.equals(s.name)) return;
+         try {
+            listen();
+         } catch (DBusException DBe) {
+            if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
+         }
+      }
+   }
+
+   private AbstractConnection conn;
+   private DBus.Properties remote;
+   private _changehandler handler = new _changehandler();
+   private _ownerhandler ownerhandler;
+   /** The bus name of the object, or null on a peer connection */
+   private String busname;
+   /** The unique name signals are listened for from, or null if there is none */
+   private String source;
+   private boolean closed = false;
+   private Map<String, _interface> interfaces = new ConcurrentHashMap<String, _interface>();
+   private List<PropertyListener> listeners = new CopyOnWriteArrayList<PropertyListener>();
+
+   /**
+    * Mirror the properties of a remote object.
+    * @param conn The connection the object was imported from.
+    * @param remote The Properties interface of the object, from getRemoteObject or getPeerRemoteObject.
+    * @throws DBusException If remote is not a remote object from this connection
+    * or the signals could not be listened for.
+    */
+   public PropertyMirror(AbstractConnection conn, DBus.Properties remote) throws DBusException
+   {
+      if (null == remote || null == conn.importedObjects.get(remote))
+         throw new DBusException(_("Not an object exported or imported by this connection"));
+      this.conn = conn;
+      this.remote = remote;
+      // listen before fetching anything, so no change can be missed
+      if (conn instanceof DBusConnection) {
+         busname = conn.importedObjects.get(remote).busname;
+         if (!busname.startsWith(":")) {
+            ownerhandler = new _ownerhandler();
+            ((DBusConnection) conn).getNameOwnerRegistry().addHandler(ownerhandler);
+         }
+         listen();
+      } else
+         conn.addSigHandler(DBus.Properties.PropertiesChanged.class, remote, handler);
+   }
+   /**
+    * Listen for the signals from the current owner of the bus name, dropping
+    * the local copy if the owner has changed.
+    */
+   private synchronized void listen() throws DBusException
+   {
+      if (closed) return;
+      DBusConnection bus = (DBusConnection) conn;
+      String owner;
+      try {
+         owner = bus.getNameOwnerRegistry().getNameOwner(busname);
+      } catch (DBus.Error.NameHasNoOwner NHNOe) {
+         owner = null;
+      }
+      if (null == owner ? null == source : owner.equals(source)) return;
+      if (Debug.debug) Debug.print(Debug.DEBUG, "Mirroring properties of "+busname+" from "+owner+" rather than "+source);
+      if (null != source)
+         bus.removeSigHandler(DBus.Properties.PropertiesChanged.class, source, remote, handler);
+      source = owner;
+      interfaces.clear();
+      if (null != source)
+         bus.addSigHandler(DBus.Properties.PropertiesChanged.class, source, remote, handler);
+   }
+   /**
+    * Stop updating the properties.
+    * @throws DBusException If the signals could not be stopped.
+    */
+   public void close() throws DBusException
+   {
+      if (conn instanceof DBusConnection) {
+         DBusConnection bus = (DBusConnection) conn;
+         synchronized (this) {
+            closed = true;
+            if (null != ownerhandler)
+               bus.getNameOwnerRegistry().removeHandler(ownerhandler);
+            if (null != source)
+               bus.removeSigHandler(DBus.Properties.PropertiesChanged.class, source, remote, handler);
+            source = null;
+         }
+      } else
+         conn.removeSigHandler(DBus.Properties.PropertiesChanged.class, remote, handler);
+      interfaces.clear();
+   }
+   public void addListener(PropertyListener l)
+   {
+      listeners.add(l);
+   }
+   public void removeListener(PropertyListener l)
+   {
+      listeners.remove(l);
+   }
+   /**
+    * Get the value of a property.
+    * @param interface_name The interface the property is associated with.
+    * @param property_name The name of the property.
+    * @return The value, fetched from the remote object if it is not known yet.
+    */
+   @SuppressWarnings("unchecked")
+   public <A> A get(String interface_name, String property_name)
+   {
+      _interface i = load(interface_name);
+      Object value = i.values.get(property_name);
+      if (null == value) {
+         value = remote.Get(interface_name, property_name);
+         if (value instanceof Variant) value = ((Variant) value).getValue();
+         // a newer value may have arrived while fetching
+         Object newer = null == value ? null : i.values.putIfAbsent(property_name, value);
+         if (null != newer) value = newer;
+      }
+      return (A) value;
+   }
+   /**
+    * Get the values of all the properties of an interface that are currently
+    * known. Invalidated properties which have not been read since are missing.
+    */
+   public Map<String, Object> getAll(String interface_name)
+   {
+      return Collections.unmodifiableMap(load(interface_name).values);
+   }
+   /**
+    * Set the value of a property on the remote object. The local copy is
+    * updated when the object signals the change.
+    */
+   public <A> void set(String interface_name, String property_name, A value)
+   {
+      remote.Set(interface_name, property_name, value);
+   }
+   /**
+    * Drop the local copy of an interface's properties, so they are
+    * fetched again when one of them is next read.
+    */
+   public void refresh(String interface_name)
+   {
+      interfaces.remove(interface_name);
+   }
+
+   private _interface getInterface(String interface_name)
+   {
+      _interface i = interfaces.get(interface_name);
+      if (null == i) {
+         synchronized (interfaces) {
+            i = interfaces.get(interface_name);
+            if (null == i) {
+               i = new _interface();
+               interfaces.put(interface_name, i);
+            }
+         }
+      }
+      return i;
+   }
+   private _interface load(String interface_name)
+   {
+      _interface i = getInterface(interface_name);
+      if (i.loaded) return i;
+      synchronized (i) {
+         if (i.loaded) return i;
+         if (Debug.debug) Debug.print(Debug.DEBUG, "Fetching properties of "+interface_name+" from "+remote);
+         Map<String, Variant> all = remote.GetAll(interface_name);
+         for (Map.Entry<String, Variant> e: all.entrySet())
+            // values from signals which arrived while fetching are newer
+            i.values.putIfAbsent(e.getKey(), e.getValue().getValue());
+         i.loaded = true;
+      }
+      return i;
+   }
+   private void fire(String interface_name, String property_name, Object value)
+   {
+      for (PropertyListener l: listeners)
+         try {
+            l.propertyChanged(interface_name, property_name, value);
+         } catch (RuntimeException Re) {
+            if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, Re);
+         }
+   }
+}
@@ -12,11 +12,9 @@ package org.freedesktop.dbus;
 
 import static org.freedesktop.dbus.Gettext._;
 
-import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
-import java.lang.reflect.Type;
 import java.text.MessageFormat;
 import java.util.Arrays;
 
@@ -34,23 +32,45 @@ class RemoteInvocationHandler implements InvocationHandler
    public static final int CALL_TYPE_CALLBACK = 2;
    public static Object convertRV(String sig, Object[] rp, Method m, AbstractConnection conn) throws DBusException
    {
-      Class<? extends Object> c = m.getReturnType();
-
-      if (null == rp) { 
-         if(null == c || Void.TYPE.equals(c)) return null;
-         else throw new DBusExecutionException(_("Wrong return type (got void, expected a value)"));
-      } else {
+      if (null != rp) {
          try { 
             if (Debug.debug) Debug.print(Debug.VERBOSE, "Converting return parameters from "+Arrays.deepToString(rp)+" to type "+m.getGenericReturnType());
-            rp = Marshalling.deSerializeParameters(rp, 
-                  new Type[] { m.getGenericReturnType() }, conn);
+            rp = MethodCodec.get(m).deserializeReturn(rp, conn);
          }
          catch (Exception e) { 
             if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
             throw new DBusExecutionException(MessageFormat.format(_("Wrong return type (failed to de-serialize correct types: {0} )"), new Object[] { e.getMessage() }));
          }
       }
-
+      return returnValue(rp, m);
+   }
+   /**
+    * Read the return value of a method from its reply, decoding the reply
+    * body directly into the return type.
+    */
+   public static Object convertRV(Message reply, Method m, AbstractConnection conn) throws DBusException
+   {
+      Object[] rp;
+      try { 
+         if (Debug.debug) Debug.print(Debug.VERBOSE, "Converting return parameters of "+reply+" to type "+m.getGenericReturnType());
+         // replies to shared calls are read by all the callers
+         synchronized (reply) {
+            rp = MethodCodec.get(m).deserializeReturn(reply, conn);
+         }
+      }
+      catch (Exception e) { 
+         if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
+         throw new DBusExecutionException(MessageFormat.format(_("Wrong return type (failed to de-serialize correct types: {0} )"), new Object[] { e.getMessage() }));
+      }
+      return returnValue(rp, m);
+   }
+   private static Object returnValue(Object[] rp, Method m) throws DBusException
+   {
+      Class<? extends Object> c = m.getReturnType();
+      if (null == rp) { 
+         if(null == c || Void.TYPE.equals(c)) return null;
+         else throw new DBusExecutionException(_("Wrong return type (got void, expected a value)"));
+      }
       switch (rp.length) {
          case 0:
             if (null == c || Void.TYPE.equals(c))
@@ -63,55 +83,74 @@ class RemoteInvocationHandler implements InvocationHandler
             // check we are meant to return multiple values
             if (!Tuple.class.isAssignableFrom(c))
                throw new DBusExecutionException(_("Wrong return type (not expecting Tuple)"));
-            
-            Constructor<? extends Object> cons = c.getConstructors()[0];
-            try {
-               return cons.newInstance(rp);
-            } catch (Exception e) {
-               if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
-               throw new DBusException(e.getMessage());
-            }
+
+            return MethodCodec.get(m).newTuple(rp);
       }
    }
-   @SuppressWarnings("unchecked")
    public static Object executeRemoteMethod(RemoteObject ro, Method m, AbstractConnection conn, int syncmethod, CallbackHandler callback, Object... args) throws DBusExecutionException
    {
-      Type[] ts = m.getGenericParameterTypes();
+      return executeRemoteMethod(ro, CallDescriptor.get(m), conn, syncmethod, callback, args);
+   }
+   /**
+    * Create the message for a call to a remote method.
+    */
+   static MethodCall createCall(RemoteObject ro, CallDescriptor cd, AbstractConnection conn, int syncmethod, Object... args) throws DBusExecutionException
+   {
+      MethodCodec codec = cd.codec;
       String sig = null;
-      if (ts.length > 0) try {
-         sig = Marshalling.getDBusType(ts);
-         args = Marshalling.convertParameters(args, ts, conn);
+      try {
+         sig = codec.getSignature();
+         if (null != sig) args = codec.serialize(args, conn);
       } catch (DBusException DBe) {
          throw new DBusExecutionException(_("Failed to construct D-Bus type: ")+DBe.getMessage());
       }
       MethodCall call;
-      byte flags = 0;
+      byte flags = cd.flags;
       if (!ro.autostart) flags |= Message.Flags.NO_AUTO_START;
       if (syncmethod == CALL_TYPE_ASYNC) flags |= Message.Flags.ASYNC;
-      if (m.isAnnotationPresent(DBus.Method.NoReply.class)) flags |= Message.Flags.NO_REPLY_EXPECTED;
       try {
-         String name;
-         if (m.isAnnotationPresent(DBusMemberName.class))
-            name = m.getAnnotation(DBusMemberName.class).value();
-         else
-            name = m.getName();
-         if (null == ro.iface) 
-            call = new MethodCall(ro.busname, ro.objectpath, null, name,flags, sig, args);
-         else {
-            if (null != ro.iface.getAnnotation(DBusInterfaceName.class)) {
-               call = new MethodCall(ro.busname, ro.objectpath, ro.iface.getAnnotation(DBusInterfaceName.class).value(), name, flags, sig, args);
-            } else
-               call = new MethodCall(ro.busname, ro.objectpath, AbstractConnection.dollar_pattern.matcher(ro.iface.getName()).replaceAll("."), name, flags, sig, args);
-         }
+         call = new MethodCall(ro.busname, ro.objectpath, ro.ifname, cd.name, flags, sig, args);
       } catch (DBusException DBe) {
          if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
          throw new DBusExecutionException(_("Failed to construct outgoing method call: ")+DBe.getMessage());
       }
+      return call;
+   }
+   @SuppressWarnings("unchecked")
+   static Object executeRemoteMethod(RemoteObject ro, CallDescriptor cd, AbstractConnection conn, int syncmethod, CallbackHandler callback, Object... args) throws DBusExecutionException
+   {
+      // DBusAsyncReply.of must only see the call made immediately before it
+      DBusAsyncReply.clearLast();
+      Method m = cd.method;
+      ReplyCache.CallKey key = null;
+      long ttl = CALL_TYPE_SYNC == syncmethod ? conn.getReplyCache().getTTL(cd) : 0;
+      long generation = 0;
+      if (ttl > 0) {
+         key = new ReplyCache.CallKey(ro.busname, ro.objectpath, ro.ifname, cd.name, args);
+         Object rv = conn.getReplyCache().get(key);
+         if (ReplyCache.MISS != rv) return rv;
+         generation = conn.getReplyCache().begin();
+      }
+      // checked before the call is shared, as a shared call would never be sent
+      if (CALL_TYPE_SYNC == syncmethod && !cd.noreply && Thread.currentThread() == conn.thread)
+         throw new DBusExecutionException(_("Cannot make synchronous calls from an inline handler"));
+      MethodCall call = createCall(ro, cd, conn, syncmethod, args);
       if (null == conn.outgoing) throw new NotConnected(_("Not Connected"));
 
+      // identical calls waiting for their reply are joined rather than sent again
+      boolean shared = false;
+      if ((cd.singleflight || ro.singleflight) && !cd.noreply && CALL_TYPE_CALLBACK != syncmethod) {
+         MethodCall flight = call.share(conn.flights, null == key ? new ReplyCache.CallKey(ro.busname, ro.objectpath, ro.ifname, cd.name, args) : key);
+         if (null != flight) {
+            if (Debug.debug) Debug.print(Debug.VERBOSE, "Sharing "+flight);
+            call = flight;
+            shared = true;
+         }
+      }
+
       switch (syncmethod) {
          case CALL_TYPE_ASYNC: 
-            conn.queueOutgoing(call);
+            if (!shared) conn.queueOutgoing(call);
             return new DBusAsyncReply(call, m, conn);
          case CALL_TYPE_CALLBACK:
              synchronized (conn.pendingCallbacks) {
@@ -122,21 +161,49 @@ class RemoteInvocationHandler implements InvocationHandler
              conn.queueOutgoing(call);
              return null;
          case CALL_TYPE_SYNC:
-             conn.queueOutgoing(call);
+             if (!shared) conn.queueOutgoing(call);
              break;
       }
 
       // get reply
-      if (m.isAnnotationPresent(DBus.Method.NoReply.class)) return null;
+      if (cd.noreply) return null;
 
-      Message reply = call.getReply();
+      Object rv = readReply(cd, conn, call);
+      // the caller which sent a shared call decides whether its reply is kept
+      if (null != key && !shared) conn.getReplyCache().put(key, rv, ttl, generation);
+      return rv;
+   }
+   /**
+    * Send a call which has already been created and wait for its reply.
+    * Replies to these calls are neither cached nor shared.
+    */
+   static Object executeCall(CallDescriptor cd, AbstractConnection conn, MethodCall call) throws DBusExecutionException
+   {
+      DBusAsyncReply.clearLast();
+      if (null == conn.outgoing) throw new NotConnected(_("Not Connected"));
+      if (Thread.currentThread() == conn.thread && !cd.noreply)
+         throw new DBusExecutionException(_("Cannot make synchronous calls from an inline handler"));
+      conn.queueOutgoing(call);
+      if (cd.noreply) return null;
+      return readReply(cd, conn, call);
+   }
+   /**
+    * Wait for the reply to a call and convert its return value.
+    */
+   private static Object readReply(CallDescriptor cd, AbstractConnection conn, MethodCall call) throws DBusExecutionException
+   {
+      Message reply = cd.timeout > 0 ? call.getReply(cd.timeout) : call.getReply();
+      // a call which timed out must not be joined by later calls
+      if (null == reply) call.unshare();
+      if (null == reply && Thread.currentThread().isInterrupted())
+         throw new DBusExecutionException(_("Interrupted while waiting for a reply"));
       if (null == reply) throw new DBus.Error.NoReply(_("No reply within specified time"));
                
       if (reply instanceof Error)
          ((Error) reply).throwException();
 
       try {
-         return convertRV(reply.getSig(), reply.getParameters(), m, conn);
+         return convertRV(reply, cd.method, conn);
       } catch (DBusException e) {
          if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
          throw new DBusExecutionException(e.getMessage());
@@ -149,43 +216,30 @@ class RemoteInvocationHandler implements InvocationHandler
    {
       this.remote = remote;
       this.conn = conn;
+      if (null != remote.iface) CallDescriptor.prepare(remote.iface);
    }
    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
    {
-      if (method.getName().equals("isRemote")) return true;
-      else if (method.getName().equals("clone")) return null;
-      else if (method.getName().equals("equals")) {
-         try { 
-            if (1 == args.length)   
-               return new Boolean(remote.equals(((RemoteInvocationHandler) Proxy.getInvocationHandler(args[0])).remote));
-         } catch (IllegalArgumentException IAe) {
-            return Boolean.FALSE;
-         }
-      }
-      else if (method.getName().equals("finalize")) return null;
-      else if (method.getName().equals("getClass")) return DBusInterface.class;
-      else if (method.getName().equals("hashCode")) return remote.hashCode();
-      else if (method.getName().equals("notify")) {
-         remote.notify();
-         return null;
-      } else if (method.getName().equals("notifyAll")) {
-         remote.notifyAll();
-         return null;
-      } else if (method.getName().equals("wait"))  {
-         if (0 == args.length) remote.wait();
-         else if (1 == args.length 
-               && args[0] instanceof Long) remote.wait((Long) args[0]);
-         else if (2 == args.length 
-               && args[0] instanceof Long
-               && args[1] instanceof Integer) 
-            remote.wait((Long) args[0], (Integer) args[1]);
-         if (args.length <= 2)
-            return null;
+      CallDescriptor cd = CallDescriptor.get(method);
+      switch (cd.local) {
+         case CallDescriptor.IS_REMOTE:
+            return true;
+         case CallDescriptor.EQUALS:
+            try { 
+               if (null == args[0]) return Boolean.FALSE;
+               if (args[0] instanceof RemoteStub) return remote.equals(((RemoteStub) args[0]).getRemote());
+               return remote.equals(((RemoteInvocationHandler) Proxy.getInvocationHandler(args[0])).remote);
+            } catch (IllegalArgumentException IAe) {
+               return Boolean.FALSE;
+            } catch (ClassCastException CCe) {
+               return Boolean.FALSE;
+            }
+         case CallDescriptor.HASHCODE:
+            return remote.hashCode();
+         case CallDescriptor.TOSTRING:
+            return remote.toString();
       }
-      else if (method.getName().equals("toString"))
-         return remote.toString();
-
-      return executeRemoteMethod(remote, method, conn, CALL_TYPE_SYNC, null, args);
+      return executeRemoteMethod(remote, cd, conn, CALL_TYPE_SYNC, null, args);
    }
 }
 
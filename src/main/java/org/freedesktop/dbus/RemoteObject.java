@@ -15,13 +15,25 @@ class RemoteObject
    String busname;
    String objectpath;
    Class<? extends DBusInterface> iface;
+   /** The D-Bus name of iface, or null. */
+   String ifname;
    boolean autostart;
+   /** The object from AbstractConnection.async, once it has been created. */
+   volatile DBusInterface async;
+   /** Whether identical calls on this object share one call on the wire. */
+   volatile boolean singleflight;
    public RemoteObject(String busname, String objectpath, Class<? extends DBusInterface> iface, boolean autostart)
    {
       this.busname = busname;
       this.objectpath = objectpath;
       this.iface = iface;
       this.autostart = autostart;
+      if (null == iface)
+         ifname = null;
+      else if (null != iface.getAnnotation(DBusInterfaceName.class))
+         ifname = iface.getAnnotation(DBusInterfaceName.class).value();
+      else
+         ifname = AbstractConnection.dollar_pattern.matcher(iface.getName()).replaceAll(".");
    }
    public boolean equals(Object o)
    {
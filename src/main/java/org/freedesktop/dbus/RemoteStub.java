@@ -0,0 +1,197 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import static org.freedesktop.dbus.Gettext._;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.text.MessageFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.DBusExecutionException;
+
+import cx.ath.matthew.debug.Debug;
+
+/**
+ * Base class for generated remote object stubs.
+ * <p>
+ * A stub is a class which implements a DBusInterface by calling the remote
+ * object directly, instead of through a java.lang.reflect.Proxy. The stub
+ * methods write their arguments straight into the outgoing message, without
+ * putting them in an array or boxing primitives. Stubs are
+ * generated from compiled interfaces with org.freedesktop.dbus.bin.CreateStub.
+ * A stub for the interface a.b.C must be called a.b.CStub. When a stub is
+ * on the classpath getRemoteObject returns an instance of it rather than a
+ * proxy.
+ * </p>
+ */
+public abstract class RemoteStub implements DBusInterface
+{
+   /** The suffix added to the name of an interface to get the name of its stub. */
+   public static final String SUFFIX = "Stub";
+   private static final Map<Class<? extends Object>, Class<? extends Object>> stubs = new ConcurrentHashMap<Class<? extends Object>, Class<? extends Object>>();
+
+   /**
+    * Create a stub for a remote object, if there is one for its interface.
+    * @return The stub, or null if there is no stub for this interface.
+    */
+   @SuppressWarnings("unchecked")
+   static <I extends DBusInterface> I create(Class<I> type, AbstractConnection conn, RemoteObject remote)
+   {
+      Class<? extends Object> c = stubs.get(type);
+      if (null == c) {
+         c = RemoteStub.class;
+         try {
+            Class<? extends Object> s = Class.forName(type.getName()+SUFFIX, true, type.getClassLoader());
+            if (RemoteStub.class.isAssignableFrom(s) && type.isAssignableFrom(s)) {
+               if (Debug.debug) Debug.print(Debug.INFO, "Using stub "+s+" for "+type);
+               c = s;
+            }
+         } catch (ClassNotFoundException CNFe) {
+            // no stub, use a proxy
+         } catch (LinkageError Le) {
+            if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, Le);
+         }
+         // RemoteStub itself means there is no stub
+         stubs.put(type, c);
+      }
+      if (RemoteStub.class.equals(c)) return null;
+      try {
+         RemoteStub stub = (RemoteStub) c.newInstance();
+         stub.conn = conn;
+         stub.remote = remote;
+         return (I) stub;
+      } catch (Exception e) {
+         if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
+         stubs.put(type, RemoteStub.class);
+         return null;
+      }
+   }
+   /**
+    * Look up an interface method, for use by generated stubs.
+    * @throws DBusExecutionException If the method does not exist.
+    */
+   protected static Method method(Class<? extends DBusInterface> iface, String name, Class<?>... types)
+   {
+      try {
+         Method m = iface.getMethod(name, types);
+         CallDescriptor.get(m);
+         return m;
+      } catch (NoSuchMethodException NSMe) {
+         if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, NSMe);
+         throw new DBusExecutionException(MessageFormat.format(_("Stub for {0} does not match the interface: no method {1}"), new Object[] { iface, name }));
+      }
+   }
+
+   private AbstractConnection conn;
+   private RemoteObject remote;
+
+   protected RemoteStub() {}
+   /**
+    * Call a method on the remote object and wait for the reply.
+    * @param m The method, as returned by method().
+    * @param args The parameters.
+    * @return The return value, or null for void methods.
+    */
+   protected final Object call(Method m, Object... args)
+   {
+      return RemoteInvocationHandler.executeRemoteMethod(remote, CallDescriptor.get(m), conn, RemoteInvocationHandler.CALL_TYPE_SYNC, null, args);
+   }
+   /**
+    * Start a call to a remote method. The stub appends each argument to
+    * the call in turn with append() and then sends it with send().
+    * @param m The method, as returned by method().
+    * @return The call, or null if the method has to be called with call()
+    * instead: if its replies are cached or shared, or it has parameters
+    * which need the general marshalling code.
+    */
+   protected final MethodCall begin(Method m)
+   {
+      CallDescriptor cd = CallDescriptor.get(m);
+      if (cd.singleflight || remote.singleflight || 0 < conn.getReplyCache().getTTL(cd))
+         return null;
+      String sig = null;
+      try {
+         sig = cd.codec.getSignature();
+      } catch (DBusException DBe) {
+         throw new DBusExecutionException(_("Failed to construct D-Bus type: ")+DBe.getMessage());
+      }
+      if (null != sig && null == cd.codec.getParameterSignatures()) return null;
+      byte flags = cd.flags;
+      if (!remote.autostart) flags |= Message.Flags.NO_AUTO_START;
+      try {
+         MethodCall mc = new MethodCall(remote, cd.name, flags, sig);
+         mc.descriptor = cd;
+         return mc;
+      } catch (DBusException DBe) {
+         if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
+         throw new DBusExecutionException(_("Failed to construct outgoing method call: ")+DBe.getMessage());
+      }
+   }
+   /**
+    * Append an argument to a call from begin().
+    * @param mc The call.
+    * @param i The index of the parameter.
+    * @param b The argument.
+    */
+   protected final void append(MethodCall mc, int i, boolean b) { append(mc, i, b ? 1L : 0L); }
+   protected final void append(MethodCall mc, int i, byte b) { append(mc, i, (long) b); }
+   protected final void append(MethodCall mc, int i, short s) { append(mc, i, (long) s); }
+   protected final void append(MethodCall mc, int i, int n) { append(mc, i, (long) n); }
+   protected final void append(MethodCall mc, int i, long l)
+   {
+      mc.appendPrimitive(mc.descriptor.codec.getParameterSignatures()[i][0], l);
+   }
+   protected final void append(MethodCall mc, int i, float f) { append(mc, i, (double) f); }
+   protected final void append(MethodCall mc, int i, double d)
+   {
+      mc.appendPrimitive(mc.descriptor.codec.getParameterSignatures()[i][0], d);
+   }
+   protected final void append(MethodCall mc, int i, Object o)
+   {
+      MethodCodec codec = mc.descriptor.codec;
+      try {
+         if (null != o) o = codec.serialize(i, o, conn);
+         mc.appendone(codec.getParameterSignatures()[i], 0, o);
+      } catch (DBusException DBe) {
+         if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
+         throw new DBusExecutionException(_("Failed to construct outgoing method call: ")+DBe.getMessage());
+      }
+   }
+   /**
+    * Send a call from begin() once all its arguments have been appended,
+    * and wait for the reply.
+    * @return The return value, or null for void methods.
+    */
+   protected final Object send(MethodCall mc)
+   {
+      CallDescriptor cd = mc.descriptor;
+      mc.descriptor = null;
+      mc.close();
+      return RemoteInvocationHandler.executeCall(cd, conn, mc);
+   }
+   RemoteObject getRemote() { return remote; }
+   public boolean isRemote() { return true; }
+   public boolean equals(Object o)
+   {
+      if (o instanceof RemoteStub)
+         return remote.equals(((RemoteStub) o).remote);
+      if (null != o && Proxy.isProxyClass(o.getClass())
+            && Proxy.getInvocationHandler(o) instanceof RemoteInvocationHandler)
+         return remote.equals(((RemoteInvocationHandler) Proxy.getInvocationHandler(o)).remote);
+      return false;
+   }
+   public int hashCode() { return remote.hashCode(); }
+   public String toString() { return remote.toString(); }
+}
@@ -0,0 +1,331 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import static org.freedesktop.dbus.Gettext._;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.freedesktop.DBus;
+import org.freedesktop.dbus.exceptions.DBusException;
+
+import cx.ath.matthew.debug.Debug;
+
+/**
+ * Caches the replies to method calls on remote objects.
+ * <p>
+ * Only calls to methods annotated with {@link DBusCached}, or enabled with
+ * {@link #enable(Method,long)}, are cached. The replies are keyed on the
+ * destination, object path, interface, member and arguments of the call,
+ * and kept for the time given for the method. When the cache is full the
+ * least recently used reply is dropped.
+ * </p><p>
+ * On a bus connection, replies from a name are dropped when its owner
+ * changes. Other signals can be used to drop the replies from an object
+ * with {@link #invalidateOn}. Replies to calls which were waiting when
+ * replies were dropped are not kept.
+ * </p><p>
+ * Cached values are shared between all the callers which get them and
+ * must not be modified.
+ * </p>
+ * Each connection has one cache, from {@link AbstractConnection#getReplyCache()}.
+ */
+public class ReplyCache
+{
+   /** The number of replies kept by default. */
+   public static final int DEFAULT_MAX_SIZE = 1024;
+   /** Returned by get when there is no cached reply. */
+   static final Object MISS = new Object();
+
+   /**
+    * Identifies a call by everything which may change its reply.
+    * The arguments are copied, so that changing them after the call
+    * does not change the key.
+    */
+   static class CallKey
+   {
+      private String destination;
+      private String path;
+      private String iface;
+      private String member;
+      private Object[] args;
+      private int hash;
+      public CallKey(String destination, String path, String iface, String member, Object[] args)
+      {
+         this.destination = destination;
+         this.path = path;
+         this.iface = iface;
+         this.member = member;
+         this.args = null == args ? new Object[0] : (Object[]) copy(args);
+         this.hash = (null == destination ? 0 : destination.hashCode())
+            + 31 * path.hashCode() + 31 * 31 * member.hashCode()
+            + Arrays.deepHashCode(this.args);
+      }
+      public boolean equals(Object o)
+      {
+         if (!(o instanceof CallKey)) return false;
+         CallKey k = (CallKey) o;
+         return hash == k.hash
+            && path.equals(k.path)
+            && member.equals(k.member)
+            && (null == destination ? null == k.destination : destination.equals(k.destination))
+            && (null == iface ? null == k.iface : iface.equals(k.iface))
+            && Arrays.deepEquals(args, k.args);
+      }
+      public int hashCode() { return hash; }
+      public String toString()
+      {
+         return destination+":"+path+":"+iface+"."+member+Arrays.deepToString(args);
+      }
+      /**
+       * Copy an argument deeply. Lists, structs and variants become arrays
+       * of their contents and maps have their values wrapped, so that
+       * they compare by content with Arrays.deepEquals.
+       */
+      private static Object copy(Object o)
+      {
+         if (o instanceof Object[]) {
+            Object[] a = (Object[]) o;
+            Object[] c = new Object[a.length];
+            for (int i = 0; i < a.length; i++)
+               c[i] = copy(a[i]);
+            return c;
+         } else if (null != o && o.getClass().isArray()) {
+            int len = Array.getLength(o);
+            Object c = Array.newInstance(o.getClass().getComponentType(), len);
+            System.arraycopy(o, 0, c, 0, len);
+            return c;
+         } else if (o instanceof List) {
+            return copy(((List<?>) o).toArray());
+         } else if (o instanceof Map) {
+            Map<Object,_value> c = new HashMap<Object,_value>();
+            for (Map.Entry<?,?> e: ((Map<?,?>) o).entrySet())
+               c.put(copy(e.getKey()), new _value(copy(e.getValue())));
+            return c;
+         } else if (o instanceof Container) {
+            return new Object[] { o.getClass(), copy(((Container) o).getParameters()) };
+         } else if (o instanceof Variant) {
+            Variant<?> v = (Variant<?>) o;
+            return new Object[] { Variant.class, v.getSig(), copy(v.getValue()) };
+         } else
+            return o;
+      }
+   }
+   /**
+    * A map value in a key, compared by content.
+    */
+   private static class _value
+   {
+      private Object value;
+      public _value(Object value) { this.value = value; }
+      public boolean equals(Object o)
+      {
+         return o instanceof _value && Arrays.deepEquals(new Object[] { value }, new Object[] { ((_value) o).value });
+      }
+      public int hashCode() { return Arrays.deepHashCode(new Object[] { value }); }
+      public String toString() { return Arrays.deepToString(new Object[] { value }); }
+   }
+   private static class _entry
+   {
+      Object value;
+      long expires;
+      public _entry(Object value, long expires)
+      {
+         this.value = value;
+         this.expires = expires;
+      }
+   }
+   private class _lru extends LinkedHashMap<CallKey, _entry>
+   {
+      private static final long serialVersionUID = 1L;
+      public _lru()
+      {
+         super(16, 0.75f, true);
+      }
+      protected boolean removeEldestEntry(Map.Entry<CallKey, _entry> eldest)
+      {
+         return size() > maxsize;
+      }
+   }
+   private class _ownerhandler implements DBusSigHandler<DBus.NameOwnerChanged>
+   {
+      public void handle(DBus.NameOwnerChanged s)
+      {
+         invalidate(s.name);
+         if (null != s.old_owner && 0 < s.old_owner.length())
+            invalidate(s.old_owner);
+      }
+   }
+   private class _pathhandler implements DBusSigHandler<DBusSignal>
+   {
+      public void handle(DBusSignal s)
+      {
+         invalidate(null, s.getPath());
+      }
+   }
+
+   private AbstractConnection conn;
+   private _lru replies = new _lru();
+   private int maxsize = DEFAULT_MAX_SIZE;
+   private Map<Method, Long> enabled = new ConcurrentHashMap<Method, Long>();
+   private boolean watching = false;
+   /** Counts invalidations, so that replies to calls made before one are not kept. */
+   private long generation = 0;
+   ReplyCache(AbstractConnection conn)
+   {
+      this.conn = conn;
+   }
+   /**
+    * Set the number of replies to keep.
+    */
+   public synchronized void setMaxSize(int maxsize)
+   {
+      if (maxsize < 0) throw new IllegalArgumentException(_("Cache size must not be negative"));
+      this.maxsize = maxsize;
+      Iterator<CallKey> i = replies.keySet().iterator();
+      while (replies.size() > maxsize && i.hasNext()) {
+         i.next();
+         i.remove();
+      }
+   }
+   /**
+    * Cache replies to calls to a method, or change how long they are kept.
+    * This overrides any DBusCached annotation on the method.
+    * @param m The interface method.
+    * @param ttl How long to keep replies, in milliseconds. If this is not
+    * positive the replies are not cached.
+    */
+   public void enable(Method m, long ttl)
+   {
+      enabled.put(m, ttl);
+   }
+   /**
+    * Cache replies to calls to all the methods of an interface with the given name.
+    * @see #enable(Method,long)
+    */
+   public void enable(Class<? extends DBusInterface> iface, String name, long ttl)
+   {
+      for (Method m: iface.getMethods())
+         if (m.getName().equals(name))
+            enable(m, ttl);
+   }
+   /**
+    * Drop the replies from the object which sent any signal of this type.
+    * @throws DBusException If the signal could not be listened for.
+    */
+   @SuppressWarnings("unchecked")
+   public <T extends DBusSignal> void invalidateOn(Class<T> type) throws DBusException
+   {
+      conn.addSigHandler(type, (DBusSigHandler<T>) new _pathhandler());
+   }
+   /**
+    * Drop all cached replies.
+    */
+   public synchronized void clear()
+   {
+      generation++;
+      replies.clear();
+   }
+   /**
+    * Drop all the replies from a bus name.
+    */
+   public void invalidate(String destination)
+   {
+      invalidate(destination, null);
+   }
+   /**
+    * Drop the replies from an object.
+    * @param destination The bus name, or null for any bus name.
+    * @param path The object path, or null for any object.
+    */
+   public synchronized void invalidate(String destination, String path)
+   {
+      if (Debug.debug) Debug.print(Debug.VERBOSE, "Invalidating cached replies from "+destination+":"+path);
+      generation++;
+      Iterator<CallKey> i = replies.keySet().iterator();
+      while (i.hasNext()) {
+         CallKey k = i.next();
+         if ((null == destination || destination.equals(k.destination))
+               && (null == path || path.equals(k.path)))
+            i.remove();
+      }
+   }
+   /**
+    * How long to keep replies to a method, or 0 if they are not cached.
+    */
+   long getTTL(CallDescriptor cd)
+   {
+      if (!enabled.isEmpty()) {
+         Long ttl = enabled.get(cd.method);
+         if (null != ttl) return ttl;
+      }
+      return cd.cachettl;
+   }
+   /**
+    * Get a cached reply, or MISS.
+    */
+   synchronized Object get(CallKey key)
+   {
+      _entry e = replies.get(key);
+      if (null == e) return MISS;
+      if (e.expires - System.currentTimeMillis() <= 0) {
+         replies.remove(key);
+         return MISS;
+      }
+      if (Debug.debug) Debug.print(Debug.VERBOSE, "Using cached reply to "+key);
+      return e.value;
+   }
+   /**
+    * Start a call whose reply may be cached, before it is sent.
+    * @return The generation to pass to put with the reply.
+    */
+   long begin()
+   {
+      long g;
+      synchronized (this) {
+         g = generation;
+         if (watching) return g;
+         watching = true;
+      }
+      if (conn instanceof DBusConnection)
+         try {
+            ((DBusConnection) conn).getNameOwnerRegistry().addHandler(new _ownerhandler());
+         } catch (DBusException DBe) {
+            if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
+            synchronized (this) {
+               watching = false;
+               generation++;
+               replies.clear();
+            }
+         }
+      return g;
+   }
+   /**
+    * Keep a reply, unless the cache has been invalidated since the call
+    * was started with begin.
+    */
+   synchronized void put(CallKey key, Object value, long ttl, long generation)
+   {
+      if (generation != this.generation) {
+         if (Debug.debug) Debug.print(Debug.VERBOSE, "Not caching reply to "+key+" as it may be stale");
+         return;
+      }
+      replies.put(key, new _entry(value, System.currentTimeMillis() + ttl));
+   }
+}
@@ -0,0 +1,454 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import static org.freedesktop.dbus.Gettext._;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.MarshallingException;
+
+import cx.ath.matthew.debug.Debug;
+
+/**
+ * Converts values read from the wire into a single Java type.
+ * Converters are built once per type and cached, so the work of inspecting
+ * the (possibly generic) type is not repeated for every message. Types
+ * without a specialised converter use Marshalling.deSerializeParameter.
+ * <p>
+ * Converters for structs, lists, arrays and maps can also decode straight
+ * from the message body into the Java type, without first building the
+ * Vectors and Object arrays which Message.getParameters returns.
+ * </p>
+ */
+abstract class TypeConverter
+{
+   private static final Map<Type, TypeConverter> converters = new ConcurrentHashMap<Type, TypeConverter>();
+
+   /**
+    * Get the converter for a type.
+    */
+   static TypeConverter get(Type type)
+   {
+      TypeConverter tc = converters.get(type);
+      if (null == tc) {
+         if (Debug.debug) Debug.print(Debug.VERBOSE, "Creating converter for "+type);
+         tc = create(type);
+         converters.put(type, tc);
+      }
+      return tc;
+   }
+   @SuppressWarnings("unchecked")
+   private static TypeConverter create(Type type)
+   {
+      if (type instanceof Class) {
+         Class<? extends Object> c = (Class<? extends Object>) type;
+         if (Float.class.equals(c) || Float.TYPE.equals(c))
+            return new _float();
+         if (c.isPrimitive()
+               || String.class.equals(c)
+               || Boolean.class.equals(c)
+               || Byte.class.equals(c)
+               || Short.class.equals(c)
+               || Integer.class.equals(c)
+               || Long.class.equals(c)
+               || Double.class.equals(c)
+               || UInt16.class.equals(c)
+               || UInt32.class.equals(c)
+               || UInt64.class.equals(c)
+               || Variant.class.equals(c))
+            return new _simple();
+         if (DBusInterface.class.isAssignableFrom(c))
+            return new _object();
+         if (Struct.class.isAssignableFrom(c))
+            return new _struct(c);
+         if (c.isArray() && !Type.class.equals(c.getComponentType()))
+            return new _array(c);
+      } else if (type instanceof ParameterizedType) {
+         ParameterizedType p = (ParameterizedType) type;
+         Type[] args = p.getActualTypeArguments();
+         if (List.class.equals(p.getRawType()))
+            return new _list(get(args[0]));
+         Class<? extends Object> raw = (Class<? extends Object>) p.getRawType();
+         if (Map.class.equals(raw))
+            return new _map(get(args[0]), get(args[1]), null);
+         if (Map.class.isAssignableFrom(raw)
+               && !raw.isInterface() && !Modifier.isAbstract(raw.getModifiers()))
+            return new _map(get(args[0]), get(args[1]), raw);
+      }
+      return new _generic(type);
+   }
+
+   /**
+    * Convert a value (as returned from Message.getParameters) to this type.
+    * @param parameter The value, which must not be null.
+    */
+   abstract Object convert(Object parameter, AbstractConnection conn) throws Exception;
+   /**
+    * Demarshall one value of this type from a message body.
+    * Arguments are as for Message.extractone. By default this reads
+    * the value with extractone and converts it.
+    */
+   Object decode(Message m, byte[] sigb, byte[] buf, int[] ofs, boolean contained, AbstractConnection conn) throws Exception
+   {
+      Object o = m.extractone(sigb, buf, ofs, contained);
+      if (null == o) return null;
+      return convert(o, conn);
+   }
+   /* whether it is worth decoding values of this type directly */
+   static boolean isContainer(byte type)
+   {
+      return Message.ArgumentType.STRUCT1 == type
+         || Message.ArgumentType.ARRAY == type
+         || Message.ArgumentType.DICT_ENTRY1 == type;
+   }
+   /**
+    * Read the length of the array at ofs and move to its first element.
+    * @return The offset of the end of the array, or -1 if it is empty,
+    * in which case nothing is read.
+    */
+   static long readArray(Message m, byte[] sigb, byte[] buf, int[] ofs) throws DBusException
+   {
+      int start = m.align(ofs[1], Message.ArgumentType.ARRAY);
+      long size = m.demarshallint(buf, start, 4);
+      if (0 == size) return -1;
+      ofs[0]++;
+      ofs[1] = m.align(start + 4, sigb[ofs[0]]);
+      if (size / Message.getAlignment(sigb[ofs[0]]) > DBusConnection.MAX_ARRAY_LENGTH || ofs[1] + size > buf.length)
+         throw new MarshallingException(_("Arrays must not exceed ")+DBusConnection.MAX_ARRAY_LENGTH);
+      return ofs[1] + size;
+   }
+
+   /** Types which need no conversion, except for object paths being turned into Paths. */
+   static class _simple extends TypeConverter
+   {
+      Object convert(Object parameter, AbstractConnection conn)
+      {
+         if (parameter instanceof ObjectPath)
+            return new Path(((ObjectPath) parameter).path);
+         return parameter;
+      }
+   }
+   /** Doubles (from older bindings) are narrowed to floats. */
+   static class _float extends TypeConverter
+   {
+      Object convert(Object parameter, AbstractConnection conn)
+      {
+         if (parameter instanceof Float) return parameter;
+         return ((Number) parameter).floatValue();
+      }
+   }
+   /** Object paths are turned into proxies for the remote object. */
+   static class _object extends TypeConverter
+   {
+      Object convert(Object parameter, AbstractConnection conn) throws DBusException
+      {
+         if (parameter instanceof ObjectPath)
+            return conn.getExportedObject(
+                  ((ObjectPath) parameter).source,
+                  ((ObjectPath) parameter).path);
+         return parameter;
+      }
+   }
+   static class _list extends TypeConverter
+   {
+      private TypeConverter element;
+      _list(TypeConverter element)
+      {
+         this.element = element;
+      }
+      @SuppressWarnings("unchecked")
+      Object convert(Object parameter, AbstractConnection conn) throws Exception
+      {
+         if (parameter instanceof List) {
+            List<Object> l = (List<Object>) parameter;
+            if (element instanceof _object) conn.introspectionCache.prefetch(l);
+            for (int i = 0; i < l.size(); i++) {
+               Object o = l.get(i);
+               if (null != o) l.set(i, element.convert(o, conn));
+            }
+            return l;
+         }
+         if (parameter.getClass().isArray())
+            return ArrayFrob.listify(parameter);
+         return parameter;
+      }
+      Object decode(Message m, byte[] sigb, byte[] buf, int[] ofs, boolean contained, AbstractConnection conn) throws Exception
+      {
+         if (Message.ArgumentType.ARRAY != sigb[ofs[0]] || !isContainer(sigb[ofs[0]+1])
+               || Message.ArgumentType.DICT_ENTRY1 == sigb[ofs[0]+1])
+            return super.decode(m, sigb, buf, ofs, contained, conn);
+         int[] save = new int[] { ofs[0], ofs[1] };
+         long end = readArray(m, sigb, buf, ofs);
+         if (-1 == end) {
+            ofs[0] = save[0];
+            ofs[1] = save[1];
+            return super.decode(m, sigb, buf, ofs, contained, conn);
+         }
+         int ofssave = ofs[0];
+         Vector<Object> l = new Vector<Object>();
+         while (ofs[1] < end) {
+            ofs[0] = ofssave;
+            l.add(element.decode(m, sigb, buf, ofs, true, conn));
+         }
+         return l;
+      }
+   }
+   /** Dictionaries, which are copied into the declared Map class if it is not just Map. */
+   static class _map extends TypeConverter
+   {
+      private TypeConverter key;
+      private TypeConverter value;
+      private Class<? extends Object> type;
+      _map(TypeConverter key, TypeConverter value, Class<? extends Object> type)
+      {
+         this.key = key;
+         this.value = value;
+         this.type = type;
+      }
+      @SuppressWarnings("unchecked")
+      static Map<Object, Object> copy(DBusMap dmap, Class<? extends Object> type) throws Exception
+      {
+         Object[][] entries = dmap.entries;
+         Map<Object, Object> m;
+         if (HashMap.class.equals(type))
+            m = new HashMap<Object, Object>(entries.length * 4 / 3 + 1);
+         else if (LinkedHashMap.class.equals(type))
+            m = new LinkedHashMap<Object, Object>(entries.length * 4 / 3 + 1);
+         else
+            m = (Map<Object, Object>) type.newInstance();
+         for (int i = 0; i < entries.length; i++)
+            m.put(entries[i][0], entries[i][1]);
+         return m;
+      }
+      Object convert(Object parameter, AbstractConnection conn) throws Exception
+      {
+         if (parameter instanceof DBusMap) {
+            Object[][] entries = ((DBusMap) parameter).entries;
+            for (int i = 0; i < entries.length; i++) {
+               if (null != entries[i][0]) entries[i][0] = key.convert(entries[i][0], conn);
+               if (null != entries[i][1]) entries[i][1] = value.convert(entries[i][1], conn);
+            }
+            if (null != type) return copy((DBusMap) parameter, type);
+         }
+         return parameter;
+      }
+      Object decode(Message m, byte[] sigb, byte[] buf, int[] ofs, boolean contained, AbstractConnection conn) throws Exception
+      {
+         if (Message.ArgumentType.ARRAY != sigb[ofs[0]] 
+               || Message.ArgumentType.DICT_ENTRY1 != sigb[ofs[0]+1])
+            return super.decode(m, sigb, buf, ofs, contained, conn);
+         int[] save = new int[] { ofs[0], ofs[1] };
+         long end = readArray(m, sigb, buf, ofs);
+         if (-1 == end) {
+            ofs[0] = save[0];
+            ofs[1] = save[1];
+            return super.decode(m, sigb, buf, ofs, contained, conn);
+         }
+         int ofssave = ofs[0];
+         // entries are 8-aligned, so there cannot be more than size/8,
+         // and size has been checked against the length of the buffer
+         Object[][] entries = new Object[(int) ((end - ofs[1]) / 8) + 1][];
+         int n = 0;
+         while (ofs[1] < end) {
+            ofs[0] = ofssave;
+            ofs[1] = m.align(ofs[1], Message.ArgumentType.DICT_ENTRY1);
+            ofs[0]++;
+            Object k = key.decode(m, sigb, buf, ofs, true, conn);
+            ofs[0]++;
+            Object v = value.decode(m, sigb, buf, ofs, true, conn);
+            ofs[0]++;
+            entries[n++] = new Object[] { k, v };
+         }
+         if (n != entries.length) {
+            Object[][] tmp = new Object[n][];
+            System.arraycopy(entries, 0, tmp, 0, n);
+            entries = tmp;
+         }
+         DBusMap<Object, Object> dmap = new DBusMap<Object, Object>(entries);
+         if (null != type) return copy(dmap, type);
+         return dmap;
+      }
+   }
+   static class _array extends TypeConverter
+   {
+      private Class<? extends Object> type;
+      private Class<? extends Object> component;
+      private TypeConverter element;
+      _array(Class<? extends Object> type)
+      {
+         this.type = type;
+         this.component = type.getComponentType();
+         this.element = get(component);
+      }
+      @SuppressWarnings("unchecked")
+      Object convert(Object parameter, AbstractConnection conn) throws Exception
+      {
+         if (type.equals(parameter.getClass())) return parameter;
+         if (!(parameter instanceof List))
+            return Marshalling.deSerializeParameter(parameter, type, conn);
+         List<Object> l = (List<Object>) parameter;
+         int len = l.size();
+         // unsigned values (at, au, aq) may be read into long[] and int[].
+         // This only helps return values and signal arguments: long[] and
+         // int[] are sent as ax and ai, so an exported method taking them
+         // is never matched by a call sending at or au.
+         if (long[].class.equals(type)) {
+            long[] la = new long[len];
+            for (int i = 0; i < len; i++)
+               la[i] = ((Number) l.get(i)).longValue();
+            return la;
+         }
+         if (int[].class.equals(type)) {
+            int[] ia = new int[len];
+            for (int i = 0; i < len; i++)
+               ia[i] = ((Number) l.get(i)).intValue();
+            return ia;
+         }
+         if (element instanceof _object) conn.introspectionCache.prefetch(l);
+         Object a = Array.newInstance(component, len);
+         if (component.isPrimitive()) {
+            for (int i = 0; i < len; i++)
+               Array.set(a, i, element.convert(l.get(i), conn));
+         } else {
+            Object[] oa = (Object[]) a;
+            for (int i = 0; i < len; i++) {
+               Object o = l.get(i);
+               if (null != o) oa[i] = element.convert(o, conn);
+            }
+         }
+         return a;
+      }
+      Object decode(Message m, byte[] sigb, byte[] buf, int[] ofs, boolean contained, AbstractConnection conn) throws Exception
+      {
+         if (component.isPrimitive() 
+               || Message.ArgumentType.ARRAY != sigb[ofs[0]] || !isContainer(sigb[ofs[0]+1])
+               || Message.ArgumentType.DICT_ENTRY1 == sigb[ofs[0]+1])
+            return super.decode(m, sigb, buf, ofs, contained, conn);
+         int[] save = new int[] { ofs[0], ofs[1] };
+         long end = readArray(m, sigb, buf, ofs);
+         if (-1 == end) {
+            ofs[0] = save[0];
+            ofs[1] = save[1];
+            return super.decode(m, sigb, buf, ofs, contained, conn);
+         }
+         int ofssave = ofs[0];
+         Vector<Object> l = new Vector<Object>();
+         while (ofs[1] < end) {
+            ofs[0] = ofssave;
+            l.add(element.decode(m, sigb, buf, ofs, true, conn));
+         }
+         return l.toArray((Object[]) Array.newInstance(component, l.size()));
+      }
+   }
+   static class _struct extends TypeConverter
+   {
+      private Class<? extends Object> type;
+      private volatile TypeConverter[] fields = null;
+      private Constructor<? extends Object>[] cons;
+      private boolean generic = false;
+      _struct(Class<? extends Object> type)
+      {
+         this.type = type;
+         this.cons = TypeRegistry.getStructConstructors(type);
+      }
+      /* field converters are resolved on first use, so that
+       * structs which contain themselves do not recurse here */
+      @SuppressWarnings("unchecked")
+      private TypeConverter[] getFields()
+      {
+         TypeConverter[] fs = fields;
+         if (null != fs) return fs;
+         Type[] ts = TypeRegistry.getStructTypes(type);
+         fs = new TypeConverter[ts.length];
+         for (int i = 0; i < ts.length; i++) {
+            if (null == ts[i]) continue;
+            if (ts[i] instanceof Class && DBusSerializable.class.isAssignableFrom((Class<? extends Object>) ts[i]))
+               generic = true;
+            if (ts[i] instanceof ParameterizedType
+                  && Tuple.class.isAssignableFrom((Class<? extends Object>) ((ParameterizedType) ts[i]).getRawType()))
+               generic = true;
+            fs[i] = get(ts[i]);
+         }
+         fields = fs;
+         return fs;
+      }
+      Object convert(Object parameter, AbstractConnection conn) throws Exception
+      {
+         TypeConverter[] fs = getFields();
+         if (generic || !(parameter instanceof Object[]))
+            return Marshalling.deSerializeParameter(parameter, type, conn);
+         Object[] ps = (Object[]) parameter;
+         if (ps.length > fs.length)
+            throw new DBusException(_("Error deserializing message: number of parameters didn't match receiving signature"));
+         for (int i = 0; i < ps.length; i++)
+            if (null != ps[i] && null != fs[i]) ps[i] = fs[i].convert(ps[i], conn);
+         return construct(ps);
+      }
+      private Object construct(Object[] ps) throws Exception
+      {
+         for (Constructor<? extends Object> con: cons) {
+            try {
+               return con.newInstance(ps);
+            } catch (IllegalArgumentException IAe) {}
+         }
+         return ps;
+      }
+      Object decode(Message m, byte[] sigb, byte[] buf, int[] ofs, boolean contained, AbstractConnection conn) throws Exception
+      {
+         TypeConverter[] fs = getFields();
+         if (generic || Message.ArgumentType.STRUCT1 != sigb[ofs[0]])
+            return super.decode(m, sigb, buf, ofs, contained, conn);
+         ofs[1] = m.align(ofs[1], Message.ArgumentType.STRUCT1);
+         Object[] ps = new Object[fs.length];
+         int n = 0;
+         while (sigb[++ofs[0]] != Message.ArgumentType.STRUCT2) {
+            if (n >= fs.length)
+               throw new DBusException(_("Error deserializing message: number of parameters didn't match receiving signature"));
+            if (null == fs[n])
+               ps[n] = m.extractone(sigb, buf, ofs, true);
+            else
+               ps[n] = fs[n].decode(m, sigb, buf, ofs, true, conn);
+            n++;
+         }
+         if (n != ps.length) {
+            Object[] tmp = new Object[n];
+            System.arraycopy(ps, 0, tmp, 0, n);
+            ps = tmp;
+         }
+         return construct(ps);
+      }
+   }
+   /** Anything else is handled by Marshalling. */
+   static class _generic extends TypeConverter
+   {
+      private Type type;
+      _generic(Type type)
+      {
+         this.type = type;
+      }
+      Object convert(Object parameter, AbstractConnection conn) throws Exception
+      {
+         return Marshalling.deSerializeParameter(parameter, type, conn);
+      }
+   }
+}
@@ -0,0 +1,240 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericDeclaration;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.freedesktop.dbus.exceptions.DBusException;
+
+import cx.ath.matthew.debug.Debug;
+
+/**
+ * Caches information about Java types which is expensive to work out:
+ * D-Bus signatures, the field layout of structs and the classes and
+ * constructors of signals. It also caches the Java types and bytes of
+ * the signatures in variants.
+ * <p>
+ * All the caches may be read and updated from any thread without locking.
+ * Two threads may occasionally work out the same value at once; since the
+ * values only depend on the type this is harmless.
+ * </p>
+ */
+class TypeRegistry
+{
+   private static final Map<Type, String[]> signatures = new ConcurrentHashMap<Type, String[]>();
+   private static final Map<Type, Type[]> structs = new ConcurrentHashMap<Type, Type[]>();
+   private static final Map<Class<? extends Object>, Field[]> containerFields = new ConcurrentHashMap<Class<? extends Object>, Field[]>();
+   private static final Map<Class<? extends Object>, Constructor<? extends Object>[]> structConstructors = new ConcurrentHashMap<Class<? extends Object>, Constructor<? extends Object>[]>();
+   private static final Map<Class<? extends DBusSignal>, Type[]> signalTypes = new ConcurrentHashMap<Class<? extends DBusSignal>, Type[]>();
+   private static final Map<Class<? extends DBusSignal>, Constructor<? extends DBusSignal>> signalConstructors = new ConcurrentHashMap<Class<? extends DBusSignal>, Constructor<? extends DBusSignal>>();
+   private static final Map<String, Class<? extends DBusSignal>> signalClasses = new ConcurrentHashMap<String, Class<? extends DBusSignal>>();
+   private static final Map<String, String> signalNames = new ConcurrentHashMap<String, String>();
+   private static final Map<String, String> interfaceNames = new ConcurrentHashMap<String, String>();
+   private static final Map<String, Type> variantTypes = new ConcurrentHashMap<String, Type>();
+   private static final Map<String, byte[]> variantSignatures = new ConcurrentHashMap<String, byte[]>();
+   /**
+    * Variant signatures come off the bus, so only this many are remembered.
+    */
+   static final int MAX_VARIANT_SIGNATURES = 1024;
+
+   /**
+    * The D-Bus type of a Java type, as returned by Marshalling.getDBusType(Type).
+    */
+   static String[] getDBusType(Type t) throws DBusException
+   {
+      String[] sig = signatures.get(t);
+      if (null == sig) {
+         sig = Marshalling.getDBusType(t, false);
+         signatures.put(t, sig);
+      }
+      return sig;
+   }
+   /**
+    * The Java type of a single complete D-Bus type, or null if the
+    * signature does not contain exactly one type.
+    */
+   static Type getJavaType(String sig) throws DBusException
+   {
+      Type t = variantTypes.get(sig);
+      if (null == t) {
+         Vector<Type> ts = new Vector<Type>();
+         Marshalling.getJavaType(sig, ts, 1);
+         if (ts.size() != 1) return null;
+         t = ts.get(0);
+         if (variantTypes.size() < MAX_VARIANT_SIGNATURES)
+            variantTypes.put(sig, t);
+      }
+      return t;
+   }
+   /**
+    * The bytes of a signature, as used when marshalling. The array is
+    * shared and must not be modified.
+    */
+   static byte[] getSignatureBytes(String sig)
+   {
+      byte[] b = variantSignatures.get(sig);
+      if (null == b) {
+         b = sig.getBytes();
+         if (variantSignatures.size() < MAX_VARIANT_SIGNATURES)
+            variantSignatures.put(sig, b);
+      }
+      return b;
+   }
+   /**
+    * The types of the fields of a struct, in the order given by their Position annotations.
+    * Entries with no annotated field are null.
+    */
+   static Type[] getStructTypes(Class<? extends Object> c)
+   {
+      Type[] ts = structs.get(c);
+      if (null == ts) {
+         Field[] fs = c.getDeclaredFields();
+         ts = new Type[fs.length];
+         for (Field f : fs) {
+            Position p = f.getAnnotation(Position.class);
+            if (null == p) continue;
+            ts[p.value()] = f.getGenericType();
+         }
+         structs.put(c, ts);
+      }
+      return ts;
+   }
+   /**
+    * The fields of a Struct or Tuple in the order given by their Position annotations.
+    * Access checks are turned off on the returned fields.
+    */
+   static Field[] getContainerFields(Class<? extends Object> c)
+   {
+      Field[] fs = containerFields.get(c);
+      if (null == fs) {
+         Field[] df = c.getDeclaredFields();
+         Field[] ordered = new Field[df.length];
+         int n = 0;
+         for (Field f : df) {
+            Position p = f.getAnnotation(Position.class);
+            if (null == p) continue;
+            ordered[p.value()] = MethodCodec.bind(f);
+            n++;
+         }
+         fs = new Field[n];
+         System.arraycopy(ordered, 0, fs, 0, n);
+         containerFields.put(c, fs);
+      }
+      return fs;
+   }
+   /**
+    * The constructors of a struct, in the order they should be tried.
+    * A constructor which takes the struct fields in order is first, so
+    * normally only one constructor is ever called.
+    */
+   static Constructor<? extends Object>[] getStructConstructors(Class<? extends Object> c)
+   {
+      Constructor<? extends Object>[] cons = structConstructors.get(c);
+      if (null == cons) {
+         cons = c.getDeclaredConstructors();
+         Field[] fs = getContainerFields(c);
+         for (int i = 0; i < cons.length; i++) {
+            MethodCodec.bind(cons[i]);
+            if (0 != i && matches(cons[i], fs)) {
+               Constructor<? extends Object> tmp = cons[0];
+               cons[0] = cons[i];
+               cons[i] = tmp;
+            }
+         }
+         structConstructors.put(c, cons);
+      }
+      return cons;
+   }
+   private static boolean matches(Constructor<? extends Object> con, Field[] fs)
+   {
+      Class<? extends Object>[] ps = con.getParameterTypes();
+      if (ps.length != fs.length) return false;
+      for (int i = 0; i < ps.length; i++)
+         if (!ps[i].equals(fs[i].getType())) return false;
+      return true;
+   }
+   /**
+    * The constructor used to create signals of this type from received messages.
+    */
+   @SuppressWarnings("unchecked")
+   static Constructor<? extends DBusSignal> getSignalConstructor(Class<? extends DBusSignal> c)
+   {
+      Constructor<? extends DBusSignal> con = signalConstructors.get(c);
+      if (null == con) {
+         con = MethodCodec.bind((Constructor<? extends DBusSignal>) c.getDeclaredConstructors()[0]);
+         signalConstructors.put(c, con);
+      }
+      return con;
+   }
+   /**
+    * The types of the parameters of a signal, not including the object path.
+    * Type variables are replaced by their bounds.
+    */
+   @SuppressWarnings("unchecked")
+   static Type[] getSignalTypes(Class<? extends DBusSignal> c)
+   {
+      Type[] types = signalTypes.get(c);
+      if (null == types) {
+         Type[] ts = getSignalConstructor(c).getGenericParameterTypes();
+         types = new Type[Math.max(0, ts.length-1)];
+         for (int i = 1; i <= types.length; i++)
+            if (ts[i] instanceof TypeVariable)
+               types[i-1] = ((TypeVariable<GenericDeclaration>) ts[i]).getBounds()[0];
+            else
+               types[i-1] = ts[i];
+         signalTypes.put(c, types);
+      }
+      return types;
+   }
+   /**
+    * A signal class previously registered under the given Java name (interface$Signal).
+    */
+   static Class<? extends DBusSignal> getSignalClass(String name)
+   {
+      return signalClasses.get(name);
+   }
+   static void putSignalClass(String name, Class<? extends DBusSignal> c)
+   {
+      if (Debug.debug) Debug.print(Debug.VERBOSE, "Registering signal class "+c+" as "+name);
+      signalClasses.put(name, c);
+   }
+   /**
+    * Record the Java name of an interface with a different D-Bus name.
+    */
+   static void addInterfaceName(String java, String dbus)
+   {
+      interfaceNames.put(dbus, java);
+   }
+   static String getInterfaceName(String dbus)
+   {
+      if (null == dbus) return null;
+      return interfaceNames.get(dbus);
+   }
+   /**
+    * Record the Java name of a signal with a different D-Bus name.
+    */
+   static void addSignalName(String java, String dbus)
+   {
+      signalNames.put(dbus, java);
+   }
+   static String getSignalName(String dbus)
+   {
+      if (null == dbus) return null;
+      return signalNames.get(dbus);
+   }
+}
@@ -24,7 +24,21 @@ public class UInt16 extends Number implements Comparable<UInt16>
    public static final int MAX_VALUE = 65535;
    /** Minimum possible value. */
    public static final int MIN_VALUE = 0;
+   private static final UInt16[] cache = new UInt16[256];
+   static {
+      for (int i = 0; i < cache.length; i++)
+         cache[i] = new UInt16(i);
+   }
    private int value;
+   /** Get a UInt16 for an int, reusing a cached instance for small values.
+    * @param value Must be within MIN_VALUE&ndash;MAX_VALUE 
+    * @throws NumberFormatException if value is not between MIN_VALUE and MAX_VALUE
+    */
+   public static UInt16 valueOf(int value)
+   {
+      if (value >= 0 && value < cache.length) return cache[value];
+      return new UInt16(value);
+   }
    /** Create a UInt16 from an int.
     * @param value Must be within MIN_VALUE&ndash;MAX_VALUE 
     * @throws NumberFormatException if value is not between MIN_VALUE and MAX_VALUE
@@ -24,7 +24,21 @@ public class UInt32 extends Number implements Comparable<UInt32>
    public static final long MAX_VALUE = 4294967295L;
    /** Minimum allowed value */
    public static final long MIN_VALUE = 0;
+   private static final UInt32[] cache = new UInt32[256];
+   static {
+      for (int i = 0; i < cache.length; i++)
+         cache[i] = new UInt32(i);
+   }
    private long value;
+   /** Get a UInt32 for a long, reusing a cached instance for small values.
+    * @param value Must be a valid integer within MIN_VALUE&ndash;MAX_VALUE 
+    * @throws NumberFormatException if value is not between MIN_VALUE and MAX_VALUE
+    */
+   public static UInt32 valueOf(long value)
+   {
+      if (value >= 0 && value < cache.length) return cache[(int) value];
+      return new UInt32(value);
+   }
    /** Create a UInt32 from a long.
     * @param value Must be a valid integer within MIN_VALUE&ndash;MAX_VALUE 
     * @throws NumberFormatException if value is not between MIN_VALUE and MAX_VALUE
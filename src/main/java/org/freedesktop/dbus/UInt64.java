@@ -22,6 +22,10 @@ import java.text.MessageFormat;
  * are restricted to the range of a signed 64bit number.
  * Use the BigInteger methods if you wish access to the full
  * range.
+ * <p>
+ * The value is stored as the 64 bits of a long; a BigInteger is
+ * only created if one is asked for.
+ * </p>
  */
 @SuppressWarnings("serial")
 public class UInt64 extends Number implements Comparable<UInt64>
@@ -32,9 +36,39 @@ public class UInt64 extends Number implements Comparable<UInt64>
    public static final BigInteger MAX_BIG_VALUE = new BigInteger("18446744073709551615");
    /** Minimum allowed value */
    public static final long MIN_VALUE = 0;
-   private BigInteger value;
-   private long top;
-   private long bottom;
+   private static final long MASK = 0xFFFFFFFFL;
+   private static final UInt64[] cache = new UInt64[256];
+   static {
+      for (int i = 0; i < cache.length; i++)
+         cache[i] = new UInt64(i, null);
+   }
+   /* the unsigned value, stored in the bits of a long */
+   private long value;
+   private transient BigInteger big;
+   private UInt64(long value, BigInteger big)
+   {
+      this.value = value;
+      this.big = big;
+   }
+   /** Get a UInt64 for a long, reusing a cached instance for small values.
+    * @param value Must be a valid integer within MIN_VALUE&ndash;MAX_VALUE 
+    * @throws NumberFormatException if value is not between MIN_VALUE and MAX_VALUE
+    */
+   public static UInt64 valueOf(long value)
+   {
+      if (value >= 0 && value < cache.length) return cache[(int) value];
+      return new UInt64(value);
+   }
+   /**
+    * Get a UInt64 from two longs, reusing a cached instance for small values.
+    * @param top Most significant 4 bytes.
+    * @param bottom Least significant 4 bytes.
+    */
+   public static UInt64 valueOf(long top, long bottom)
+   {
+      if (0 == top && bottom >= 0 && bottom < cache.length) return cache[(int) bottom];
+      return new UInt64(top, bottom);
+   }
    /** Create a UInt64 from a long.
     * @param value Must be a valid integer within MIN_VALUE&ndash;MAX_VALUE 
     * @throws NumberFormatException if value is not between MIN_VALUE and MAX_VALUE
@@ -43,9 +77,7 @@ public class UInt64 extends Number implements Comparable<UInt64>
    {
       if (value < MIN_VALUE || value > MAX_LONG_VALUE)
          throw new NumberFormatException(MessageFormat.format(_("{0} is not between {1} and {2}."), new Object[] { value, MIN_VALUE, MAX_LONG_VALUE}));
-      this.value = new BigInteger(""+value);
-      this.top = this.value.shiftRight(32).and(new BigInteger("4294967295")).longValue();
-      this.bottom = this.value.and(new BigInteger("4294967295")).longValue();
+      this.value = value;
    }
    /**
     * Create a UInt64 from two longs.
@@ -54,6 +86,10 @@ public class UInt64 extends Number implements Comparable<UInt64>
     */
    public UInt64(long top, long bottom)
    {
+      if (0 <= top && top <= MASK && 0 <= bottom && bottom <= MASK) {
+         this.value = (top << 32) | bottom;
+         return;
+      }
       BigInteger a = new BigInteger(""+top);
       a = a.shiftLeft(32);
       a = a.add(new BigInteger(""+bottom));
@@ -61,9 +97,8 @@ public class UInt64 extends Number implements Comparable<UInt64>
          throw new NumberFormatException(MessageFormat.format(_("{0} is not between {1} and {2}."), new Object[] { a, MIN_VALUE, MAX_BIG_VALUE}));
       if (0 < a.compareTo(MAX_BIG_VALUE))
          throw new NumberFormatException(MessageFormat.format(_("{0} is not between {1} and {2}."), new Object[] { a, MIN_VALUE, MAX_BIG_VALUE}));
-      this.value = a;
-      this.top = top;
-      this.bottom = bottom;
+      this.value = a.longValue();
+      this.big = a;
    }
    /** Create a UInt64 from a BigInteger
     * @param value Must be a valid BigInteger between MIN_VALUE&ndash;MAX_BIG_VALUE
@@ -77,9 +112,8 @@ public class UInt64 extends Number implements Comparable<UInt64>
          throw new NumberFormatException(MessageFormat.format(_("{0} is not between {1} and {2}."), new Object[] { value, MIN_VALUE, MAX_BIG_VALUE}));
       if (0 < value.compareTo(MAX_BIG_VALUE))
          throw new NumberFormatException(MessageFormat.format(_("{0} is not between {1} and {2}."), new Object[] { value, MIN_VALUE, MAX_BIG_VALUE}));
-      this.value = value;
-      this.top = this.value.shiftRight(32).and(new BigInteger("4294967295")).longValue();
-      this.bottom = this.value.and(new BigInteger("4294967295")).longValue();
+      this.value = value.longValue();
+      this.big = value;
    }
    /** Create a UInt64 from a String.
     * @param value Must parse to a valid integer within MIN_VALUE&ndash;MAX_BIG_VALUE 
@@ -94,58 +128,68 @@ public class UInt64 extends Number implements Comparable<UInt64>
          throw new NumberFormatException(MessageFormat.format(_("{0} is not between {1} and {2}."), new Object[] { value, MIN_VALUE, MAX_BIG_VALUE}));
       if (0 < a.compareTo(MAX_BIG_VALUE))
          throw new NumberFormatException(MessageFormat.format(_("{0} is not between {1} and {2}."), new Object[] { value, MIN_VALUE, MAX_BIG_VALUE}));
-      this.value = a;
-      this.top = this.value.shiftRight(32).and(new BigInteger("4294967295")).longValue();
-      this.bottom = this.value.and(new BigInteger("4294967295")).longValue();
+      this.value = a.longValue();
+      this.big = a;
    }
    /** The value of this as a BigInteger. */
-   public BigInteger value() { return value; }
+   public BigInteger value()
+   {
+      BigInteger b = big;
+      if (null == b) {
+         b = BigInteger.valueOf(value >>> 32).shiftLeft(32).add(BigInteger.valueOf(value & MASK));
+         big = b;
+      }
+      return b;
+   }
    /** The value of this as a byte. */
-   public byte byteValue() { return value.byteValue(); }
+   public byte byteValue() { return (byte) value; }
    /** The value of this as a double. */
-   public double doubleValue() { return value.doubleValue(); }
+   public double doubleValue() { return value >= 0 ? (double) value : value().doubleValue(); }
    /** The value of this as a float. */
-   public float floatValue() { return value.floatValue(); }
+   public float floatValue() { return value >= 0 ? (float) value : value().floatValue(); }
    /** The value of this as a int. */
-   public int intValue() { return value.intValue(); }
+   public int intValue() { return (int) value; }
    /** The value of this as a long. */
-   public long longValue() { return value.longValue(); }
+   public long longValue() { return value; }
    /** The value of this as a short. */
-   public short shortValue(){ return value.shortValue(); }
+   public short shortValue(){ return (short) value; }
    /** Test two UInt64s for equality. */
    public boolean equals(Object o)
    {
-      return o instanceof UInt64 && this.value.equals(((UInt64) o).value);
+      return o instanceof UInt64 && ((UInt64) o).value == this.value;
    }
    public int hashCode()
    {
-      return value.hashCode();
+      return (int) (value ^ (value >>> 32));
    }
    /** Compare two UInt32s. 
     * @return 0 if equal, -ve or +ve if they are different. 
     */
    public int compareTo(UInt64 other)
    {
-      return this.value.compareTo(other.value);
+      long a = this.value + Long.MIN_VALUE;
+      long b = other.value + Long.MIN_VALUE;
+      return a < b ? -1 : (a == b ? 0 : 1);
    }
    /** The value of this as a string. */
    public String toString()
    {
-      return value.toString();
+      if (value >= 0) return Long.toString(value);
+      return value().toString();
    }
    /**
     * Most significant 4 bytes.
     */
    public long top()
    {
-      return top;
+      return value >>> 32;
    }
    /**
     * Least significant 4 bytes.
     */
    public long bottom()
    {
-      return bottom;
+      return value & MASK;
    }
 }
 
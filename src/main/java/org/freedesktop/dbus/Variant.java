@@ -14,8 +14,8 @@ import static org.freedesktop.dbus.Gettext._;
 
 import java.lang.reflect.Type;
 import java.text.MessageFormat;
-import java.util.Vector;
 import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.DBusExecutionException;
 
 import cx.ath.matthew.debug.Debug;
 
@@ -24,12 +24,20 @@ import cx.ath.matthew.debug.Debug;
  * A method on DBus can send or receive a Variant. 
  * This will wrap another value whose type is determined at runtime.
  * The Variant may be parameterized to restrict the types it may accept.
+ * <p>
+ * Variants received from the bus holding arrays or dictionaries are only
+ * demarshalled when their value is first asked for; until then they keep
+ * a reference to the body of the message they came from.
+ * </p>
  */
 public class Variant<T>
 {
-   private final T o;
+   private T o;
    private final Type type;
    private final String sig;
+   private volatile Message m;
+   private byte[] buf;
+   private int ofs;
    /** 
     * Create a Variant from a basic type object.
     * @param o The wrapped value.
@@ -81,32 +89,72 @@ public class Variant<T>
    {
       if (null == o) throw new IllegalArgumentException(_("Can't wrap Null in a Variant"));
       this.sig = sig;
+      this.type = getJavaType(sig);
+      this.o = o;
+   }
+   /**
+    * Create a Variant whose value is demarshalled from a message when it is needed.
+    * @param m The message the value is in.
+    * @param sig The dbus type string of the value.
+    * @param buf The message body.
+    * @param ofs The offset of the value in the body.
+    */
+   Variant(Message m, String sig, byte[] buf, int ofs) throws IllegalArgumentException
+   {
+      this.sig = sig;
+      this.type = getJavaType(sig);
+      this.buf = buf;
+      this.ofs = ofs;
+      this.m = m;
+   }
+   private static Type getJavaType(String sig) throws IllegalArgumentException
+   {
       try {
-         Vector<Type> ts = new Vector<Type>();
-         Marshalling.getJavaType(sig, ts,1);
-         if (ts.size() != 1)
+         Type t = TypeRegistry.getJavaType(sig);
+         if (null == t)
             throw new IllegalArgumentException(_("Can't wrap multiple or no types in a Variant: ")+sig);
-         this.type = ts.get(0);
+         return t;
       } catch (DBusException DBe) {
          if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
          throw new IllegalArgumentException(MessageFormat.format(_("Can't wrap {0} in an unqualified Variant ({1})."), new Object[] { sig, DBe.getMessage() }));
       }
-      this.o = o;
    }
-   /** Return the wrapped value. */
-   public T getValue() { return o; }
+   /**
+    * Return the wrapped value.
+    * @throws DBusExecutionException If the value was received from the bus and could not be demarshalled.
+    */
+   @SuppressWarnings("unchecked")
+   public T getValue()
+   {
+      Message msg = m;
+      if (null != msg) {
+         synchronized (this) {
+            if (null != m) {
+               try {
+                  o = (T) msg.extractone(TypeRegistry.getSignatureBytes(sig), buf, new int[] { 0, ofs }, false);
+               } catch (DBusException DBe) {
+                  if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
+                  throw new DBusExecutionException(MessageFormat.format(_("Error demarshalling Variant of type {0}: {1}"), new Object[] { sig, DBe.getMessage() }));
+               }
+               buf = null;
+               m = null;
+            }
+         }
+      }
+      return o;
+   }
    /** Return the type of the wrapped value. */
    public Type getType() { return type; }
    /** Return the dbus signature of the wrapped value. */
    public String getSig() { return sig; }
    /** Format the Variant as a string. */
-   public String toString() { return "["+o+"]"; }
+   public String toString() { return "["+getValue()+"]"; }
    /** Compare this Variant with another by comparing contents */
    @SuppressWarnings("unchecked")
    public boolean equals(Object other)
    {
       if (null == other) return false;
       if (!(other instanceof Variant)) return false;
-      return this.o.equals(((Variant<? extends Object>)other).o);
+      return this.getValue().equals(((Variant<? extends Object>)other).getValue());
    }
 }
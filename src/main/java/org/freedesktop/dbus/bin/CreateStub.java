@@ -0,0 +1,217 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus.bin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.freedesktop.dbus.DBusInterface;
+import org.freedesktop.dbus.RemoteStub;
+
+/**
+ * Generates the source of RemoteStub classes for compiled DBusInterfaces.
+ * <p>
+ * Run it over the interfaces after compiling them and compile the
+ * generated stubs with the rest of the program. getRemoteObject will
+ * then return the stubs instead of creating proxies.
+ * </p>
+ * Syntax: CreateStub [--output-dir|-o &lt;dir&gt;] &lt;interface class&gt;...
+ */
+public class CreateStub
+{
+   private static final Class[] PRIMITIVES = new Class[] {
+      Boolean.TYPE, Byte.TYPE, Character.TYPE, Short.TYPE,
+      Integer.TYPE, Long.TYPE, Float.TYPE, Double.TYPE };
+   private static final String[] WRAPPERS = new String[] {
+      "Boolean", "Byte", "Character", "Short",
+      "Integer", "Long", "Float", "Double" };
+
+   /**
+    * Write the source for the stub of an interface.
+    */
+   public static void createStub(Class<? extends DBusInterface> iface, PrintStream out)
+   {
+      if (!iface.isInterface())
+         throw new IllegalArgumentException(iface+" is not an interface");
+      if (0 != iface.getTypeParameters().length)
+         throw new IllegalArgumentException("Cannot create stubs for generic interface "+iface);
+      String pkg = null == iface.getPackage() ? null : iface.getPackage().getName();
+      String name = iface.getName();
+      if (null != pkg) name = name.substring(pkg.length()+1);
+      name += RemoteStub.SUFFIX;
+
+      out.println("/* Generated by CreateStub from "+iface.getName()+". Do not edit. */");
+      if (null != pkg) out.println("package "+pkg+";");
+      out.println();
+      out.println("@SuppressWarnings(\"unchecked\")");
+      out.println("public class "+name+" extends "+RemoteStub.class.getName()+" implements "+iface.getCanonicalName());
+      out.println("{");
+      Set<String> seen = new HashSet<String>();
+      int n = 0;
+      for (Method m: iface.getMethods()) {
+         if (DBusInterface.class.equals(m.getDeclaringClass())) continue;
+         StringBuffer key = new StringBuffer(m.getName());
+         for (Class c: m.getParameterTypes()) key.append(',').append(c.getName());
+         if (!seen.add(key.toString())) continue;
+         createMethod(iface, m, n++, out);
+      }
+      out.println("}");
+   }
+   private static void createMethod(Class<? extends DBusInterface> iface, Method m, int n, PrintStream out)
+   {
+      String field = "method"+n;
+      out.print("   private static final java.lang.reflect.Method "+field+" = method("+iface.getCanonicalName()+".class, \""+m.getName()+"\"");
+      for (Class c: m.getParameterTypes())
+         out.print(", "+c.getCanonicalName()+".class");
+      out.println(");");
+
+      out.print("   public ");
+      TypeVariable[] tvs = m.getTypeParameters();
+      if (0 != tvs.length) {
+         out.print("<");
+         for (int i = 0; i < tvs.length; i++) {
+            if (0 != i) out.print(", ");
+            out.print(typeVariable(tvs[i]));
+         }
+         out.print("> ");
+      }
+      Type rtype = m.getGenericReturnType();
+      out.print(typeName(rtype)+" "+m.getName()+"(");
+      Type[] ptypes = m.getGenericParameterTypes();
+      for (int i = 0; i < ptypes.length; i++) {
+         if (0 != i) out.print(", ");
+         out.print(typeName(ptypes[i])+" arg"+i);
+      }
+      out.print(")");
+      Type[] etypes = m.getGenericExceptionTypes();
+      for (int i = 0; i < etypes.length; i++)
+         out.print((0 == i ? " throws " : ", ")+typeName(etypes[i]));
+      out.println();
+      out.println("   {");
+
+      // a single array of objects would be taken as the varargs array
+      Class[] pclasses = m.getParameterTypes();
+      boolean cast = 1 == pclasses.length && pclasses[0].isArray()
+         && !pclasses[0].getComponentType().isPrimitive();
+      StringBuffer call = new StringBuffer("call("+field);
+      for (int i = 0; i < ptypes.length; i++)
+         call.append(cast ? ", (Object) arg" : ", arg").append(i);
+      call.append(")");
+
+      // the arguments are written straight to the message, unless the
+      // method has to go through call()
+      out.println("      org.freedesktop.dbus.MethodCall mc = begin("+field+");");
+      if (Void.TYPE.equals(rtype))
+         out.println("      if (null == mc) { "+call+"; return; }");
+      else
+         out.println("      if (null == mc) "+returnValue(rtype, call.toString())+";");
+      for (int i = 0; i < pclasses.length; i++)
+         // chars would be widened to ints
+         out.println("      append(mc, "+i+", "+(Character.TYPE.equals(pclasses[i]) ? "(Object) " : "")+"arg"+i+");");
+      if (Void.TYPE.equals(rtype))
+         out.println("      send(mc);");
+      else
+         out.println("      "+returnValue(rtype, "send(mc)")+";");
+      out.println("   }");
+   }
+   private static String returnValue(Type rtype, String call)
+   {
+      if (rtype instanceof Class && ((Class) rtype).isPrimitive())
+         for (int i = 0; i < PRIMITIVES.length; i++)
+            if (PRIMITIVES[i].equals(rtype))
+               return "return (("+WRAPPERS[i]+") "+call+")."+rtype+"Value()";
+      return "return ("+typeName(rtype)+") "+call;
+   }
+   private static String typeVariable(TypeVariable tv)
+   {
+      StringBuffer sb = new StringBuffer(tv.getName());
+      Type[] bounds = tv.getBounds();
+      if (1 == bounds.length && Object.class.equals(bounds[0])) return sb.toString();
+      for (int i = 0; i < bounds.length; i++)
+         sb.append(0 == i ? " extends " : " & ").append(typeName(bounds[i]));
+      return sb.toString();
+   }
+   private static String typeName(Type t)
+   {
+      if (t instanceof Class)
+         return ((Class) t).getCanonicalName();
+      else if (t instanceof ParameterizedType) {
+         ParameterizedType p = (ParameterizedType) t;
+         StringBuffer sb = new StringBuffer(typeName(p.getRawType()));
+         Type[] args = p.getActualTypeArguments();
+         sb.append('<');
+         for (int i = 0; i < args.length; i++) {
+            if (0 != i) sb.append(", ");
+            sb.append(typeName(args[i]));
+         }
+         return sb.append('>').toString();
+      } else if (t instanceof GenericArrayType)
+         return typeName(((GenericArrayType) t).getGenericComponentType())+"[]";
+      else if (t instanceof TypeVariable)
+         return ((TypeVariable) t).getName();
+      else if (t instanceof WildcardType) {
+         WildcardType w = (WildcardType) t;
+         if (0 != w.getLowerBounds().length)
+            return "? super "+typeName(w.getLowerBounds()[0]);
+         if (0 == w.getUpperBounds().length || Object.class.equals(w.getUpperBounds()[0]))
+            return "?";
+         return "? extends "+typeName(w.getUpperBounds()[0]);
+      }
+      throw new IllegalArgumentException("Unknown type "+t);
+   }
+
+   private static void syntax()
+   {
+      System.out.println("Syntax: CreateStub [--output-dir|-o <dir>] <interface class>...");
+      System.exit(1);
+   }
+   @SuppressWarnings("unchecked")
+   public static void main(String[] args) throws Exception
+   {
+      String dir = null;
+      int i = 0;
+      if (args.length > 1 && ("--output-dir".equals(args[0]) || "-o".equals(args[0]))) {
+         dir = args[1];
+         i = 2;
+      }
+      if (i >= args.length) syntax();
+      for (; i < args.length; i++) {
+         Class c = Class.forName(args[i]);
+         if (!DBusInterface.class.isAssignableFrom(c)) {
+            System.err.println(args[i]+" is not a DBusInterface");
+            System.exit(1);
+         }
+         if (null == dir) {
+            createStub(c, System.out);
+            continue;
+         }
+         String name = c.getName()+RemoteStub.SUFFIX;
+         File f = new File(dir, name.replace('.', File.separatorChar)+".java");
+         f.getParentFile().mkdirs();
+         PrintStream out = new PrintStream(new FileOutputStream(f));
+         try {
+            createStub(c, out);
+         } finally {
+            out.close();
+         }
+         System.out.println("Created "+f);
+      }
+   }
+}
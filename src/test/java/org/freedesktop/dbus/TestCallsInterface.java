@@ -0,0 +1,44 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import java.util.List;
+import java.util.Map;
+
+import org.freedesktop.DBus.Description;
+
+/**
+ * Methods for checking how calls wait for and share their replies, and
+ * how nested types are sent and received.
+ */
+@Description("Test interface for waiting for and sharing replies")
+public interface TestCallsInterface extends DBusInterface
+{
+   @Description("Sleeps, then returns the number of calls made to it so far")
+   @DBusSingleFlight
+   @DBusTimeout(500)
+   public int shared(int ms);
+   @Description("Sleeps, then returns the number of calls made to it so far")
+   @DBusTimeout(300)
+   public int slow(int ms);
+   @Description("Sleeps, then returns the number of calls made to it so far")
+   public int sleep(int ms);
+   @Description("Returns its argument")
+   public int echo(int n);
+   @Description("Returns a nested struct")
+   public TestStruct3 structs(TestStruct3 s);
+   @Description("Returns a dict of arrays of structs")
+   public Map<String, List<TestStruct3>> dicts(Map<String, List<TestStruct3>> m);
+   @Description("Returns an array of arrays")
+   public int[][] arrays(int[][] a);
+   @Description("Returns an array of dicts of arrays")
+   public List<Map<UInt32, List<String>>> lists(List<Map<UInt32, List<String>>> l);
+}
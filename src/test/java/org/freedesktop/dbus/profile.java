@@ -10,8 +10,10 @@
 */
 package org.freedesktop.dbus;
 
+import java.io.ByteArrayOutputStream;
 import java.util.Random;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Vector;
 
 import org.freedesktop.DBus.Peer;
@@ -52,6 +54,9 @@ public class profile
    public static final int STRING_ARRAY_OUTER = 10;
    public static final int STRING_ARRAY_INNER = 1;
    public static final int STRING_ARRAY_LENGTH = 20000;
+   public static final int PROPERTIES_OUTER = 100;
+   public static final int PROPERTIES_INNER = 1000;
+   public static final int PROPERTIES_LENGTH = 30;
       
    public static class Log
    {
@@ -102,14 +107,63 @@ public class profile
          return Math.sqrt(sum / (current-1));
       }
    }
+   /**
+    * Marshall and demarshall a property map, reading two of the values,
+    * without sending it anywhere.
+    */
+   @SuppressWarnings("unchecked")
+   public static void properties() throws Exception
+   {
+      HashMap<String,Variant> m = new HashMap<String,Variant>();
+      for (int i = 0; i < PROPERTIES_LENGTH; i++)
+         switch (i % 5) {
+            case 0: m.put("Property"+i, new Variant<Integer>(i)); break;
+            case 1: m.put("Property"+i, new Variant<String>("hello "+i)); break;
+            case 2: m.put("Property"+i, new Variant<Boolean>(true)); break;
+            case 3: m.put("Property"+i, new Variant<int[]>(new int[] { i, i, i })); break;
+            default: m.put("Property"+i, new Variant<Object>(m.keySet().toArray(new String[0]), "as"));
+         }
+      int count = PROPERTIES_OUTER*PROPERTIES_INNER;
+      System.out.print("Marshalling a{sv}, map of "+PROPERTIES_LENGTH+" entries "+count+" times.");
+      Log l = new Log(PROPERTIES_OUTER);
+      long t = System.currentTimeMillis();
+      for (int i = 0; i < PROPERTIES_OUTER; i++) {
+         l.start();
+         for (int j = 0; j < PROPERTIES_INNER; j++) {
+            Message out = new Message(Message.Endian.BIG, Message.MessageType.METHOD_CALL, (byte) 0);
+            int start = (int) out.bytecounter;
+            out.append("a{sv}", m);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            for (byte[] b: out.getWireData())
+               if (null != b) bos.write(b);
+            byte[] buf = bos.toByteArray();
+            Map<?,?> got = (Map<?,?>) out.extract("a{sv}", buf, new int[] { 0, start })[0];
+            ((Variant) got.get("Property1")).getValue();
+            ((Variant) got.get("Property3")).getValue();
+         }
+         l.stop();
+      }
+      t = System.currentTimeMillis()-t;
+      System.out.println(" done.");
+      System.out.println("min/max/avg (ms per "+PROPERTIES_INNER+"): "+l.min()+"/"+l.max()+"/"+l.mean());
+      System.out.println("deviation: "+l.stddev());
+      System.out.println("Total time: "+t+"ms");
+   }
    public static void main(String[] args)
    {
       try {
          if (0==args.length) {
             System.out.println("You must specify a profile type.");
-            System.out.println("Syntax: profile <pings|arrays|introspect|maps|bytes|lists|structs|signals|rate|strings>");
+            System.out.println("Syntax: profile <pings|arrays|introspect|maps|bytes|lists|structs|signals|rate|strings|properties>");
             System.exit(1);
          }
+         if ("properties".equals(args[0])) {
+            // no bus needed; the first run warms up
+            properties();
+            properties();
+            properties();
+            System.exit(0);
+         }
          DBusConnection conn = DBusConnection.getConnection(DBusConnection.SESSION);
          conn.requestBusName("org.freedesktop.DBus.java.profiler");
          if ("pings".equals(args[0])) {
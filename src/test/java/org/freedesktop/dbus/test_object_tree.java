@@ -0,0 +1,93 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+/**
+ * Checks looking up exported objects and fallbacks by path, looking up
+ * the paths of objects, and removing nodes which are no longer needed.
+ */
+public class test_object_tree
+{
+   public static void fail(String message)
+   {
+      System.out.println("Test Failed: "+message);
+      System.err.println("Test Failed: "+message);
+      System.exit(1);
+   }
+   public static void main(String[] args) throws Exception
+   {
+      ObjectTree tree = new ObjectTree();
+      test_p2p_server a = new test_p2p_server();
+      test_p2p_server b = new test_p2p_server();
+      ExportedObject ea = new ExportedObject(a, false);
+      ExportedObject eb = new ExportedObject(b, true);
+
+      System.out.print("Testing exact paths...");
+      if (!tree.add("/a/b", ea, ea.introspectiondata)) fail("could not add object");
+      if (tree.add("/a/b", eb, eb.introspectiondata)) fail("added two objects at one path");
+      if (!tree.add("/a/b/c", eb, eb.introspectiondata)) fail("could not add object below another");
+      if (ea != tree.get("/a/b")) fail("wrong object at /a/b");
+      if (eb != tree.get("/a/b/c")) fail("wrong object at /a/b/c");
+      if (null != tree.get("/a")) fail("object found at a parent path");
+      if (null != tree.get("/a/b/c/d")) fail("object found at a child path");
+      if (null != tree.get("/a/bb")) fail("object found at a longer name");
+      if (null != tree.get("/")) fail("object found at the root");
+      System.out.println("done");
+
+      System.out.print("Testing the paths of objects...");
+      if (!"/a/b".equals(tree.find(a))) fail("wrong path for a: "+tree.find(a));
+      if (!"/a/b/c".equals(tree.find(b))) fail("wrong path for b: "+tree.find(b));
+      if (null != tree.find(new test_p2p_server())) fail("path found for an object which is not exported");
+      tree.add("/", ea, ea.introspectiondata);
+      String p = tree.find(a);
+      if (!"/".equals(p) && !"/a/b".equals(p)) fail("wrong path for an object exported twice: "+p);
+      tree.remove("/");
+      if (!"/a/b".equals(tree.find(a))) fail("wrong path after removing one of two exports: "+tree.find(a));
+      System.out.println("done");
+
+      System.out.print("Testing fallbacks...");
+      ExportedObject fa = new ExportedObject(new test_p2p_server(), false);
+      ExportedObject fb = new ExportedObject(new test_p2p_server(), false);
+      if (null != tree.getFallback("/x/y")) fail("fallback found with none added");
+      tree.addFallback("/x", fa);
+      if (fa != tree.getFallback("/x/y/z")) fail("wrong fallback below /x");
+      if (fa != tree.getFallback("/x")) fail("wrong fallback at /x");
+      if (null != tree.getFallback("/xy")) fail("fallback found at a longer name");
+      tree.addFallback("/x/y", fb);
+      if (fb != tree.getFallback("/x/y/z")) fail("longest fallback not used");
+      if (fa != tree.getFallback("/x/w")) fail("wrong fallback beside /x/y");
+      tree.removeFallback("/x/y");
+      if (fa != tree.getFallback("/x/y/z")) fail("removed fallback still used");
+      tree.addFallback("/", fb);
+      if (fb != tree.getFallback("/q")) fail("root fallback not used");
+      if (fa != tree.getFallback("/x/q")) fail("root fallback used instead of a longer one");
+      tree.removeFallback("/");
+      System.out.println("done");
+
+      System.out.print("Testing removing nodes...");
+      tree.remove("/a/b");
+      if (null != tree.get("/a/b")) fail("removed object still found");
+      if (null != tree.find(a)) fail("path found for a removed object");
+      if (eb != tree.get("/a/b/c")) fail("object below a removed one was lost");
+      if (null == tree.Introspect("/a/b")) fail("node with children was removed");
+      tree.remove("/a/b/c");
+      if (null != tree.find(b)) fail("path found for a removed object");
+      if (null != tree.Introspect("/a")) fail("empty nodes were not removed");
+      tree.remove("/a/b/c");
+      tree.remove("/never/added");
+      tree.removeFallback("/x");
+      if (null != tree.Introspect("/x")) fail("empty fallback node was not removed");
+      if (!"".equals(tree.toString())) fail("tree not empty: "+tree);
+      if (!tree.add("/a/b", ea, ea.introspectiondata)) fail("could not add object again");
+      if (!"/a/b".equals(tree.find(a))) fail("wrong path after adding again: "+tree.find(a));
+      System.out.println("done");
+   }
+}
@@ -0,0 +1,483 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.freedesktop.DBus;
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.DBusExecutionException;
+
+import cx.ath.matthew.unix.USOutputStream;
+
+/**
+ * Checks how calls wait for and share their replies, and that nested
+ * types survive a round trip, with a server and client connected directly
+ * to each other in one process.
+ */
+public class test_p2p_calls implements TestCallsInterface
+{
+   @DBusInline
+   static class inlinehandler implements DBusSigHandler<TestSignalInterface.EmptySignal>
+   {
+      private TestCallsInterface remote;
+      volatile DBusExecutionException error = null;
+      volatile boolean handled = false;
+      public inlinehandler(TestCallsInterface remote)
+      {
+         this.remote = remote;
+      }
+      public void handle(TestSignalInterface.EmptySignal s)
+      {
+         try {
+            remote.shared(0);
+         } catch (DBusExecutionException DBEe) {
+            error = DBEe;
+         }
+         handled = true;
+      }
+   }
+
+   @DBusInline
+   static class failinghandler implements DBusSigHandler<TestSignalInterface.EmptySignal>
+   {
+      public void handle(TestSignalInterface.EmptySignal s)
+      {
+         throw new RuntimeException("failing handler");
+      }
+   }
+
+   @DBusInline
+   static class counthandler implements DBusSigHandler<TestSignalInterface.EmptySignal>
+   {
+      volatile int count = 0;
+      public void handle(TestSignalInterface.EmptySignal s)
+      {
+         count++;
+      }
+   }
+
+   static class subscriber implements DBusSignalSubscriber<TestSignalInterface.TestSignal>
+   {
+      private long demand;
+      DBusSignalSubscription subscription;
+      volatile long last = -1;
+      volatile int received = 0;
+      volatile boolean ordered = true;
+      volatile Throwable error = null;
+      volatile boolean complete = false;
+      public subscriber(long demand)
+      {
+         this.demand = demand;
+      }
+      public void onSubscribe(DBusSignalSubscription s)
+      {
+         subscription = s;
+         if (demand > 0) s.request(demand);
+      }
+      public void onNext(TestSignalInterface.TestSignal s)
+      {
+         long n = s.number.longValue();
+         if (n <= last) ordered = false;
+         last = n;
+         // a slow subscriber, so that signals are dropped
+         if (0 == ++received % 100)
+            try {
+               Thread.sleep(1);
+            } catch (InterruptedException Ie) {}
+      }
+      public void onError(Throwable t)
+      {
+         error = t;
+      }
+      public void onComplete()
+      {
+         complete = true;
+      }
+   }
+
+   /**
+    * Records what would be written to a Unix socket.
+    */
+   static class recordingstream extends USOutputStream
+   {
+      ByteArrayOutputStream written = new ByteArrayOutputStream();
+      int writes = 0;
+      int largest = 0;
+      public recordingstream()
+      {
+         super(-1, null);
+      }
+      public void write(byte[][] b)
+      {
+         writes++;
+         largest = Math.max(largest, b.length);
+         for (byte[] buf: b)
+            if (null != buf) written.write(buf, 0, buf.length);
+      }
+   }
+
+   private AtomicInteger calls = new AtomicInteger();
+   public boolean isRemote() { return false; }
+   public int shared(int ms)
+   {
+      return sleep(ms);
+   }
+   public int slow(int ms)
+   {
+      return sleep(ms);
+   }
+   public int sleep(int ms)
+   {
+      int n = calls.incrementAndGet();
+      try {
+         Thread.sleep(ms);
+      } catch (InterruptedException Ie) {}
+      return n;
+   }
+   public int echo(int n) { return n; }
+   public TestStruct3 structs(TestStruct3 s) { return s; }
+   public Map<String, List<TestStruct3>> dicts(Map<String, List<TestStruct3>> m) { return m; }
+   public int[][] arrays(int[][] a) { return a; }
+   public List<Map<UInt32, List<String>>> lists(List<Map<UInt32, List<String>>> l) { return l; }
+
+   static DirectConnection server = null;
+   static DirectConnection client = null;
+   public static void fail(String message)
+   {
+      System.out.println("Test Failed: "+message);
+      System.err.println("Test Failed: "+message);
+      if (null != client) client.disconnect();
+      System.exit(1);
+   }
+   public static void main(String[] args) throws Exception
+   {
+      final String address = DirectConnection.createDynamicTCPSession();
+      Thread listener = new Thread() {
+         public void run()
+         {
+            try {
+               server = new DirectConnection(address+",listen=true");
+            } catch (DBusException DBe) {
+               DBe.printStackTrace();
+            }
+         }
+      };
+      listener.start();
+      // wait for the server to start listening
+      for (int i = 0; null == client; i++)
+         try {
+            client = new DirectConnection(address);
+         } catch (DBusException DBe) {
+            if (i >= 50) throw DBe;
+            Thread.sleep(100);
+         }
+      listener.join();
+      if (null == server) fail("server did not connect");
+      System.out.println("Connected");
+
+      test_p2p_calls tpc = new test_p2p_calls();
+      server.exportObject("/Test", tpc);
+      final TestCallsInterface remote = (TestCallsInterface) client.getRemoteObject("/Test", TestCallsInterface.class);
+      TestCallsInterface async = client.async(remote);
+
+      System.out.print("Testing a synchronous call sharing an asynchronous one...");
+      final int[] sync = new int[1];
+      Thread t = new Thread() {
+         public void run()
+         {
+            sync[0] = remote.shared(300);
+         }
+      };
+      t.start();
+      Thread.sleep(100);
+      DBusAsyncReply<Integer> reply = DBusAsyncReply.of(async.shared(300));
+      t.join();
+      while (!reply.hasReply()) Thread.sleep(10);
+      if (sync[0] != reply.getReply()) fail("identical calls were not shared");
+      if (1 != tpc.calls.get()) fail("shared call was sent more than once");
+      System.out.println("done");
+
+      System.out.print("Testing a shared call which times out...");
+      DBusAsyncReply<Integer> first = DBusAsyncReply.of(async.shared(800));
+      try {
+         remote.shared(800);
+         fail("shared call did not time out");
+      } catch (DBus.Error.NoReply NR) {}
+      // the call which timed out must not be joined again
+      DBusAsyncReply<Integer> second = DBusAsyncReply.of(async.shared(800));
+      while (!first.hasReply() || !second.hasReply()) Thread.sleep(10);
+      if (2 != first.getReply()) fail("call being shared got the wrong reply");
+      if (3 != second.getReply()) fail("call after a timeout joined the call which timed out");
+      System.out.println("done");
+
+      System.out.print("Testing synchronous calls from inline handlers...");
+      inlinehandler h = new inlinehandler(remote);
+      client.addSigHandler(TestSignalInterface.EmptySignal.class, h);
+      server.sendSignal(new TestSignalInterface.EmptySignal("/Test"));
+      for (int i = 0; i < 500 && !h.handled; i++) Thread.sleep(10);
+      if (!h.handled) fail("signal was not handled");
+      if (null == h.error) fail("synchronous call from an inline handler was not refused");
+      try {
+         if (4 != remote.shared(0)) fail("wrong number of calls made");
+      } catch (DBus.Error.NoReply NR) {
+         fail("call joined a refused call from an inline handler");
+      }
+      client.removeSigHandler(TestSignalInterface.EmptySignal.class, h);
+      System.out.println("done");
+
+      System.out.print("Testing inline handlers which throw...");
+      failinghandler fh = new failinghandler();
+      counthandler ch = new counthandler();
+      client.addSigHandler(TestSignalInterface.EmptySignal.class, fh);
+      client.addSigHandler(TestSignalInterface.EmptySignal.class, ch);
+      server.sendSignal(new TestSignalInterface.EmptySignal("/Test"));
+      server.sendSignal(new TestSignalInterface.EmptySignal("/Test"));
+      for (int i = 0; i < 500 && ch.count < 2; i++) Thread.sleep(10);
+      if (2 != ch.count) fail("handler after a failing one was not run");
+      if (5 != remote.shared(0)) fail("connection lost after a handler failed");
+      client.removeSigHandler(TestSignalInterface.EmptySignal.class, fh);
+      client.removeSigHandler(TestSignalInterface.EmptySignal.class, ch);
+      System.out.println("done");
+
+      System.out.print("Testing timeouts...");
+      long start = System.currentTimeMillis();
+      try {
+         remote.slow(2000);
+         fail("call did not time out");
+      } catch (DBus.Error.NoReply NR) {}
+      long took = System.currentTimeMillis() - start;
+      if (took < 250 || took > 1500) fail("call timed out after "+took+"ms rather than 300ms");
+      System.out.println("done");
+
+      System.out.print("Testing interrupting a call...");
+      final DBusExecutionException[] error = new DBusExecutionException[1];
+      final boolean[] interrupted = new boolean[1];
+      t = new Thread() {
+         public void run()
+         {
+            try {
+               remote.sleep(2000);
+            } catch (DBusExecutionException DBEe) {
+               error[0] = DBEe;
+            }
+            interrupted[0] = isInterrupted();
+         }
+      };
+      start = System.currentTimeMillis();
+      t.start();
+      Thread.sleep(100);
+      t.interrupt();
+      t.join();
+      took = System.currentTimeMillis() - start;
+      if (null == error[0]) fail("interrupted call returned");
+      if (!interrupted[0]) fail("interrupted call cleared the interrupt status");
+      if (took > 1500) fail("interrupted call waited for its reply");
+      System.out.println("done");
+
+      System.out.print("Testing many callers waiting for replies...");
+      final boolean[] wrong = new boolean[1];
+      Thread[] callers = new Thread[8];
+      for (int i = 0; i < callers.length; i++) {
+         final int base = i * 1000;
+         callers[i] = new Thread() {
+            public void run()
+            {
+               try {
+                  for (int j = 0; j < 200; j++)
+                     if (base + j != remote.echo(base + j)) wrong[0] = true;
+               } catch (DBusExecutionException DBEe) {
+                  DBEe.printStackTrace();
+                  wrong[0] = true;
+               }
+            }
+         };
+         callers[i].start();
+      }
+      for (Thread c: callers) c.join();
+      if (wrong[0]) fail("caller did not get the reply to its own call");
+      System.out.println("done");
+
+      System.out.print("Testing many callers sharing a call...");
+      final int[] got = new int[8];
+      int before = tpc.calls.get();
+      for (int i = 0; i < callers.length; i++) {
+         final int n = i;
+         callers[i] = new Thread() {
+            public void run()
+            {
+               got[n] = remote.shared(300);
+            }
+         };
+         callers[i].start();
+      }
+      for (Thread c: callers) c.join();
+      for (int g: got)
+         if (g != got[0]) fail("callers sharing a call got different replies");
+      if (before + 1 != tpc.calls.get()) fail("shared call was sent more than once");
+      System.out.println("done");
+
+      System.out.print("Testing nested types...");
+      List<List<Integer>> lli = new ArrayList<List<Integer>>();
+      lli.add(Arrays.asList(new Integer[] { 1, 2 }));
+      lli.add(new ArrayList<Integer>());
+      lli.add(Arrays.asList(new Integer[] { 3 }));
+      TestStruct3 ts3 = new TestStruct3(new TestStruct2(Arrays.asList(new String[] { "a", "b" }), new Variant<Integer>(7)), lli);
+      if (!ts3.equals(remote.structs(ts3))) fail("nested struct changed in a round trip");
+      Map<String, List<TestStruct3>> msl = new HashMap<String, List<TestStruct3>>();
+      msl.put("none", new ArrayList<TestStruct3>());
+      msl.put("one", Arrays.asList(new TestStruct3[] { ts3 }));
+      msl.put("two", Arrays.asList(new TestStruct3[] { ts3, ts3 }));
+      if (!msl.equals(remote.dicts(msl))) fail("dict of arrays of structs changed in a round trip");
+      int[][] aai = new int[][] { { 1, 2, 3 }, {}, { 4 } };
+      if (!Arrays.deepEquals(aai, remote.arrays(aai))) fail("array of arrays changed in a round trip");
+      List<Map<UInt32, List<String>>> lm = new ArrayList<Map<UInt32, List<String>>>();
+      Map<UInt32, List<String>> ml = new HashMap<UInt32, List<String>>();
+      ml.put(new UInt32(1), Arrays.asList(new String[] { "x", "y" }));
+      ml.put(new UInt32(2), new ArrayList<String>());
+      lm.add(ml);
+      lm.add(new HashMap<UInt32, List<String>>());
+      if (!lm.equals(remote.lists(lm))) fail("array of dicts of arrays changed in a round trip");
+      System.out.println("done");
+
+      System.out.print("Testing a flood of signals to a publisher...");
+      DBusSignalPublisher<TestSignalInterface.TestSignal> publisher = client.getSignalPublisher(TestSignalInterface.TestSignal.class);
+      subscriber all = new subscriber(Long.MAX_VALUE);
+      subscriber none = new subscriber(0);
+      publisher.subscribe(all, 64, DBusSignalPublisher.OVERFLOW_DROP_OLDEST);
+      publisher.subscribe(none, 16, DBusSignalPublisher.OVERFLOW_ERROR);
+      final int count = 20000;
+      int queued = 0;
+      for (int i = 0; i < count; i++) {
+         server.sendSignal(new TestSignalInterface.TestSignal("/Test", "flood", new UInt32(i)));
+         if (0 == i % 100) queued = Math.max(queued, client.runnables.size());
+      }
+      for (int i = 0; i < 1000 && all.last != count - 1; i++) {
+         queued = Math.max(queued, client.runnables.size());
+         Thread.sleep(10);
+      }
+      publisher.close();
+      for (int i = 0; i < 500 && !all.complete; i++) Thread.sleep(10);
+      if (!all.ordered) fail("publisher delivered signals out of order");
+      if (count - 1 != all.last) fail("newest signal was not delivered");
+      if (!all.complete) fail("subscriber was not completed");
+      if (queued > 16) fail(queued+" tasks queued for the publisher");
+      if (!(none.error instanceof DBusExecutionException)) fail("buffer overflow was not reported");
+      if (0 != none.received) fail("signals delivered without demand");
+      System.out.println("done ("+all.received+" of "+count+" delivered)");
+
+      System.out.print("Testing batches of calls...");
+      DBusBatch batch = client.batch();
+      TestCallsInterface batched = batch.wrap(remote);
+      TestCallsInterface missing = batch.wrap((TestCallsInterface) client.getRemoteObject("/Missing", TestCallsInterface.class));
+      // more calls than the sender writes before flushing
+      for (int i = 0; i < 200; i++)
+         if (0 == i % 50) missing.echo(i);
+         else batched.echo(i);
+      if (200 != batch.size()) fail("calls were not recorded");
+      List<Object> results = batch.execute();
+      if (0 != batch.size()) fail("batch not empty after executing it");
+      if (200 != results.size()) fail("wrong number of results: "+results.size());
+      for (int i = 0; i < 200; i++)
+         if (0 == i % 50) {
+            if (!(results.get(i) instanceof DBus.Error.UnknownObject)) fail("call to a missing object got "+results.get(i));
+         } else if (!Integer.valueOf(i).equals(results.get(i))) fail("result "+i+" was "+results.get(i));
+      batched.sleep(1000);
+      batched.echo(1);
+      start = System.currentTimeMillis();
+      results = batch.execute(300);
+      took = System.currentTimeMillis() - start;
+      if (!(results.get(0) instanceof DBus.Error.NoReply)) fail("call after the deadline got "+results.get(0));
+      if (took < 250 || took > 900) fail("batch took "+took+"ms rather than 300ms");
+      if (!batch.execute().isEmpty()) fail("empty batch returned results");
+      System.out.println("done");
+
+      System.out.print("Testing cached replies...");
+      ReplyCache cache = client.getReplyCache();
+      cache.enable(TestCallsInterface.class, "sleep", 300);
+      int r1 = remote.sleep(1);
+      if (r1 != remote.sleep(1)) fail("reply was not cached");
+      if (r1 == remote.sleep(2)) fail("reply cached for different arguments");
+      Thread.sleep(400);
+      if (r1 == remote.sleep(1)) fail("reply kept after it expired");
+
+      cache.enable(TestCallsInterface.class, "sleep", 10000);
+      cache.clear();
+      cache.setMaxSize(2);
+      r1 = remote.sleep(1);
+      int r2 = remote.sleep(2);
+      if (r1 != remote.sleep(1)) fail("reply was not cached");
+      remote.sleep(3);
+      if (r1 != remote.sleep(1)) fail("recently used reply was dropped");
+      if (r2 == remote.sleep(2)) fail("least recently used reply was kept");
+      cache.setMaxSize(ReplyCache.DEFAULT_MAX_SIZE);
+
+      cache.invalidateOn(TestSignalInterface.EmptySignal.class);
+      r1 = remote.sleep(1);
+      server.sendSignal(new TestSignalInterface.EmptySignal("/Other"));
+      Thread.sleep(200);
+      if (r1 != remote.sleep(1)) fail("signal from another object dropped a reply");
+      server.sendSignal(new TestSignalInterface.EmptySignal("/Test"));
+      for (int i = 0; i < 500 && r1 == remote.sleep(1); i++) Thread.sleep(10);
+      if (r1 == remote.sleep(1)) fail("signal from the object did not drop its replies");
+
+      // a reply to a call which was waiting when the cache was cleared may be stale
+      final int[] waited = new int[1];
+      t = new Thread() {
+         public void run()
+         {
+            waited[0] = remote.sleep(300);
+         }
+      };
+      t.start();
+      Thread.sleep(100);
+      cache.clear();
+      t.join();
+      if (waited[0] == remote.sleep(300)) fail("reply to a call made before clearing was cached");
+      cache.enable(TestCallsInterface.class, "sleep", 0);
+      System.out.println("done");
+
+      System.out.print("Testing writing many buffers to a Unix socket...");
+      recordingstream rs = new recordingstream();
+      MessageWriter w = new MessageWriter(rs);
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      int buffers = 0;
+      for (int i = 0; i < 500; i++) {
+         Message m = new TestSignalInterface.TestSignal("/Test", "buffers", new UInt32(i));
+         for (byte[] b: m.getWireData())
+            if (null != b) {
+               expected.write(b, 0, b.length);
+               buffers++;
+            }
+         w.writeMessage(m, false);
+      }
+      if (buffers <= MessageWriter.MAX_IOV) fail("too few buffers to test: "+buffers);
+      if (0 != rs.writes) fail("messages written before they were flushed");
+      w.flush();
+      if (rs.largest > MessageWriter.MAX_IOV) fail(rs.largest+" buffers written at once");
+      if (rs.writes < 2) fail("buffers were not written in chunks");
+      if (!Arrays.equals(expected.toByteArray(), rs.written.toByteArray())) fail("buffers were written out of order");
+      w.flush();
+      if (rs.writes != (buffers + MessageWriter.MAX_IOV - 1) / MessageWriter.MAX_IOV) fail("empty flush wrote to the socket");
+      System.out.println("done");
+
+      // the server may already have seen the client go, so exit rather than disconnect it
+      client.disconnect();
+      System.out.println("Disconnected");
+      System.exit(0);
+   }
+}